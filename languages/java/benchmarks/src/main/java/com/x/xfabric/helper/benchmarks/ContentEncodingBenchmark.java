@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x.xfabric.helper.ContentCodec;
+import com.x.xfabric.helper.ContentEncoding;
+import com.x.xfabric.helper.avro.AvroContentType;
+import com.x.xfabric.helper.avro.AvroEncDecoder;
+
+/**
+ * Content-Encoding compression of encoded messages, outbound and inbound.
+ * The time per message is the CPU cost of a codec; the bytes it saves are
+ * printed once per trial, since they do not change between iterations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentEncodingBenchmark {
+
+	@Param({ "ProductInformationManagementCapability/CreateProduct",
+			"OrderManagement/CreateOrder" })
+	public String message;
+
+	@Param({ "AVRO_BINARY", "AVRO_JSON" })
+	public AvroContentType contentType;
+
+	@Param({ "gzip", "deflate" })
+	public String codecName;
+
+	private ContentCodec codec;
+	private byte[] encoded;
+	private byte[] compressed;
+	private final byte[] scratch = new byte[8192];
+
+	@Setup
+	public void setUp() throws IOException {
+		codec = ContentEncoding.getCodec(codecName);
+		encoded = AvroEncDecoder.encode(SampleMessages.newRecord(SampleMessages
+				.getSchema(message)), contentType);
+		compressed = ContentEncoding.compress(encoded, codec);
+		System.out.printf("%n%s %s %s: %d bytes, %d compressed (%d%% saved)%n",
+				message, contentType, codecName, encoded.length,
+				compressed.length,
+				100 - (100L * compressed.length / encoded.length));
+	}
+
+	@Benchmark
+	public byte[] compress() throws IOException {
+		return ContentEncoding.compress(encoded, codec);
+	}
+
+	@Benchmark
+	public int decompress() throws IOException {
+		InputStream in = ContentEncoding.decompress(new ByteArrayInputStream(
+				compressed), codecName);
+		try {
+			int total = 0;
+			int n;
+			while ((n = in.read(scratch)) > 0) {
+				total += n;
+			}
+			return total;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x.xfabric.helper.avro.AvroContentType;
+import com.x.xfabric.helper.avro.AvroEncDecoder;
+import com.x.xfabric.helper.avro.DatumCache;
+
+/**
+ * AvroEncDecoder.encode and decode for binary and JSON, with the reader on
+ * the writer's schema or on the next version of it, and with interpretive or
+ * compiled datum readers and writers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodeDecodeBenchmark {
+
+	@Param({ "ProductInformationManagementCapability/CreateProduct",
+			"OrderManagement/CreateOrder", "Customer/CreateCustomer" })
+	public String message;
+
+	@Param({ "AVRO_BINARY", "AVRO_JSON" })
+	public AvroContentType contentType;
+
+	/**
+	 * "same" decodes with the writer schema, "next" with the next version
+	 */
+	@Param({ "same", "next" })
+	public String readerVersion;
+
+	@Param({ "interpretive", "compiled" })
+	public String datumCodec;
+
+	private Schema writerSchema;
+	private Schema readerSchema;
+	private GenericRecord record;
+	private byte[] encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		writerSchema = SampleMessages.getSchema(message);
+		readerSchema = "next".equals(readerVersion) ? SampleMessages
+				.getNextVersion(writerSchema) : writerSchema;
+		record = SampleMessages.newRecord(writerSchema);
+		DatumCache cache = AvroEncDecoder.getDatumCache();
+		cache.clear();
+		cache.setCompileThreshold("compiled".equals(datumCodec) ? 0
+				: DatumCache.COMPILE_DISABLED);
+		encoded = AvroEncDecoder.encode(record, contentType);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		return AvroEncDecoder.encode(record, contentType);
+	}
+
+	@Benchmark
+	public IndexedRecord decode() throws IOException {
+		return AvroEncDecoder.<IndexedRecord> decode(encoded, writerSchema,
+				readerSchema, contentType);
+	}
+}
@@ -0,0 +1,310 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal in-memory request carrying an XFabric message: a path, headers and
+ * a body that can be read again for every XFabricMessage built from it.
+ * Header names are case-insensitive as in a servlet container. Methods the
+ * library does not call throw UnsupportedOperationException.
+ */
+public class MockHttpServletRequest implements HttpServletRequest {
+
+	private final String pathInfo;
+	private final Map<String, String> headers = new TreeMap<String, String>(
+			String.CASE_INSENSITIVE_ORDER);
+	private final byte[] body;
+
+	/**
+	 * @param pathInfo
+	 *            the topic, e.g. "/pim/product/create"
+	 * @param body
+	 *            the request body
+	 */
+	public MockHttpServletRequest(String pathInfo, byte[] body) {
+		this.pathInfo = pathInfo;
+		this.body = body;
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return this request
+	 */
+	public MockHttpServletRequest setHeader(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+
+	public String getPathInfo() {
+		return pathInfo;
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	public Enumeration<?> getHeaders(String name) {
+		String value = headers.get(name);
+		return Collections.enumeration((value != null) ? Collections
+				.singletonList(value) : Collections.<String> emptyList());
+	}
+
+	public Enumeration<?> getHeaderNames() {
+		return Collections.enumeration(headers.keySet());
+	}
+
+	public int getContentLength() {
+		return body.length;
+	}
+
+	public String getContentType() {
+		return headers.get("Content-Type");
+	}
+
+	public ServletInputStream getInputStream() {
+		final ByteArrayInputStream in = new ByteArrayInputStream(body);
+		return new ServletInputStream() {
+			@Override
+			public int read() {
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				return in.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				return in.available();
+			}
+		};
+	}
+
+	public BufferedReader getReader() {
+		return new BufferedReader(new InputStreamReader(getInputStream()));
+	}
+
+	public String getMethod() {
+		return "POST";
+	}
+
+	public String getCharacterEncoding() {
+		return null;
+	}
+
+	public String getAuthType() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Cookie[] getCookies() {
+		throw new UnsupportedOperationException();
+	}
+
+	public long getDateHeader(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public int getIntHeader(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getPathTranslated() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getContextPath() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getQueryString() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getRemoteUser() {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean isUserInRole(String role) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Principal getUserPrincipal() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getRequestedSessionId() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getRequestURI() {
+		throw new UnsupportedOperationException();
+	}
+
+	public StringBuffer getRequestURL() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getServletPath() {
+		throw new UnsupportedOperationException();
+	}
+
+	public HttpSession getSession(boolean create) {
+		throw new UnsupportedOperationException();
+	}
+
+	public HttpSession getSession() {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean isRequestedSessionIdValid() {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean isRequestedSessionIdFromCookie() {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean isRequestedSessionIdFromURL() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Deprecated
+	public boolean isRequestedSessionIdFromUrl() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Object getAttribute(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Enumeration<?> getAttributeNames() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void setCharacterEncoding(String env) {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getParameter(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Enumeration<?> getParameterNames() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String[] getParameterValues(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Map<?, ?> getParameterMap() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getProtocol() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getScheme() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getServerName() {
+		throw new UnsupportedOperationException();
+	}
+
+	public int getServerPort() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getRemoteAddr() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getRemoteHost() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void setAttribute(String name, Object o) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void removeAttribute(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Locale getLocale() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Enumeration<?> getLocales() {
+		throw new UnsupportedOperationException();
+	}
+
+	public boolean isSecure() {
+		throw new UnsupportedOperationException();
+	}
+
+	public RequestDispatcher getRequestDispatcher(String path) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Deprecated
+	public String getRealPath(String path) {
+		throw new UnsupportedOperationException();
+	}
+
+	public int getRemotePort() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getLocalName() {
+		throw new UnsupportedOperationException();
+	}
+
+	public String getLocalAddr() {
+		throw new UnsupportedOperationException();
+	}
+
+	public int getLocalPort() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,261 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Protocol;
+import org.apache.avro.Schema;
+import org.apache.avro.compiler.idl.Idl;
+import org.apache.avro.compiler.idl.ParseException;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.codehaus.jackson.node.NullNode;
+
+import com.x.xfabric.helper.SchemaCache;
+
+/**
+ * Sample messages for the benchmarks, built from the AVDL contracts in
+ * tools/sample_messages_from_avdl/sample_avdls.
+ * 
+ * Messages are named "Contract/Record", e.g. "OrderManagement/CreateOrder"
+ * for the CreateOrder record of OrderManagement.avdl. Records are filled the
+ * same way every time: every string, array and map has content, and unions
+ * take their first non-null branch, so nested records are present down to
+ * MAX_DEPTH.
+ */
+public class SampleMessages {
+
+	/**
+	 * System property overriding the directory holding the sample AVDLs
+	 */
+	public static final String AVDL_DIR_PROPERTY = "xfabric.avdl.dir";
+
+	private static final String AVDL_DIR = "tools/sample_messages_from_avdl/sample_avdls";
+
+	private static final int COLLECTION_SIZE = 3;
+	private static final int MAX_DEPTH = 6;
+	private static final String TEXT = "sample value 0123456789";
+
+	private static final Map<String, Protocol> protocols = new HashMap<String, Protocol>();
+
+	/**
+	 * @return the directory holding the sample AVDLs: the one named by
+	 *         AVDL_DIR_PROPERTY, or the first one found walking up from the
+	 *         working directory
+	 */
+	public static File getAvdlDirectory() {
+		String configured = System.getProperty(AVDL_DIR_PROPERTY);
+		if (configured != null) {
+			return new File(configured);
+		}
+		for (File dir = new File("").getAbsoluteFile(); dir != null; dir = dir
+				.getParentFile()) {
+			File candidate = new File(dir, AVDL_DIR);
+			if (candidate.isDirectory()) {
+				return candidate;
+			}
+		}
+		throw new IllegalStateException("Cannot find " + AVDL_DIR
+				+ ", set -D" + AVDL_DIR_PROPERTY);
+	}
+
+	/**
+	 * @param contract
+	 *            AVDL file name without the extension
+	 * @return the protocol defined by the AVDL file
+	 * @throws IOException
+	 */
+	public static synchronized Protocol getProtocol(String contract)
+			throws IOException {
+		Protocol protocol = protocols.get(contract);
+		if (protocol == null) {
+			Idl idl = new Idl(new File(getAvdlDirectory(), contract + ".avdl"));
+			try {
+				protocol = idl.CompilationUnit();
+			} catch (ParseException e) {
+				throw new IOException("Cannot parse " + contract + ".avdl", e);
+			}
+			protocols.put(contract, protocol);
+		}
+		return protocol;
+	}
+
+	/**
+	 * @param message
+	 *            "Contract/Record"
+	 * @return the schema of the message
+	 * @throws IOException
+	 */
+	public static Schema getSchema(String message) throws IOException {
+		int slash = message.indexOf('/');
+		if (slash < 0) {
+			throw new IllegalArgumentException("Expected Contract/Record: "
+					+ message);
+		}
+		String name = message.substring(slash + 1);
+		for (Schema s : getProtocol(message.substring(0, slash)).getTypes()) {
+			if (s.getName().equals(name)) {
+				return s;
+			}
+		}
+		throw new IllegalArgumentException("No record " + name + " in "
+				+ message.substring(0, slash) + ".avdl");
+	}
+
+	/**
+	 * Loads all topic schemas of the message's contract into the SchemaCache,
+	 * as an application would at startup.
+	 * 
+	 * @param message
+	 *            "Contract/Record"
+	 * @throws IOException
+	 */
+	public static void loadIntoSchemaCache(String message) throws IOException {
+		String contract = message.substring(0, message.indexOf('/'));
+		File avpr = File.createTempFile(contract, ".avpr");
+		avpr.deleteOnExit();
+		Writer out = new FileWriter(avpr);
+		try {
+			out.write(getProtocol(contract).toString());
+		} finally {
+			out.close();
+		}
+		try {
+			SchemaCache.loadSchema(avpr.getPath());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * The next version of a message schema: the same record with one more
+	 * optional field, as a reader that has moved on to a newer contract sees
+	 * it.
+	 * 
+	 * @param schema
+	 *            a record schema
+	 * @return the evolved schema
+	 */
+	public static Schema getNextVersion(Schema schema) {
+		List<Schema.Field> fields = new ArrayList<Schema.Field>();
+		for (Schema.Field field : schema.getFields()) {
+			fields.add(new Schema.Field(field.name(), field.schema(), field
+					.doc(), field.defaultValue()));
+		}
+		List<Schema> optional = new ArrayList<Schema>();
+		optional.add(Schema.create(Schema.Type.NULL));
+		optional.add(Schema.create(Schema.Type.STRING));
+		fields.add(new Schema.Field("benchmarkAddedField", Schema
+				.createUnion(optional), null, NullNode.getInstance()));
+		Schema next = Schema.createRecord(schema.getName(), schema.getDoc(),
+				schema.getNamespace(), schema.isError());
+		next.setFields(fields);
+		for (Map.Entry<String, String> prop : schema.getProps().entrySet()) {
+			next.addProp(prop.getKey(), prop.getValue());
+		}
+		return next;
+	}
+
+	/**
+	 * @param schema
+	 *            a record schema
+	 * @return a filled-in record of the schema
+	 */
+	public static GenericRecord newRecord(Schema schema) {
+		return (GenericRecord) newValue(schema, 0);
+	}
+
+	private static Object newValue(Schema schema, int depth) {
+		switch (schema.getType()) {
+		case NULL:
+			return null;
+		case BOOLEAN:
+			return Boolean.TRUE;
+		case INT:
+			return Integer.valueOf(4242);
+		case LONG:
+			return Long.valueOf(1325376000000L);
+		case FLOAT:
+			return Float.valueOf(19.99f);
+		case DOUBLE:
+			return Double.valueOf(1234.5678);
+		case STRING:
+			return TEXT;
+		case BYTES:
+			return ByteBuffer.wrap(TEXT.getBytes());
+		case FIXED:
+			return new GenericData.Fixed(schema, new byte[schema
+					.getFixedSize()]);
+		case ENUM:
+			return new GenericData.EnumSymbol(schema, schema.getEnumSymbols()
+					.get(0));
+		case ARRAY:
+			int size = (depth < MAX_DEPTH) ? COLLECTION_SIZE : 0;
+			GenericData.Array<Object> array = new GenericData.Array<Object>(
+					size, schema);
+			for (int i = 0; i < size; i++) {
+				array.add(newValue(schema.getElementType(), depth + 1));
+			}
+			return array;
+		case MAP:
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			if (depth < MAX_DEPTH) {
+				for (int i = 0; i < COLLECTION_SIZE; i++) {
+					map.put("key" + i, newValue(schema.getValueType(), depth + 1));
+				}
+			}
+			return map;
+		case UNION:
+			Schema branch = null;
+			for (Schema type : schema.getTypes()) {
+				if (type.getType() == Schema.Type.NULL) {
+					if (depth >= MAX_DEPTH) {
+						return null;
+					}
+				} else if (branch == null) {
+					branch = type;
+				}
+			}
+			return (branch != null) ? newValue(branch, depth) : null;
+		case RECORD:
+			GenericData.Record record = new GenericData.Record(schema);
+			for (Schema.Field field : schema.getFields()) {
+				record.put(field.pos(), newValue(field.schema(), depth + 1));
+			}
+			return record;
+		default:
+			throw new IllegalArgumentException("Unknown type " + schema);
+		}
+	}
+}
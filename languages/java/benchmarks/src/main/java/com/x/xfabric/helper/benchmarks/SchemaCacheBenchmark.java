@@ -0,0 +1,128 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.x.xfabric.helper.SchemaCache;
+import com.x.xfabric.helper.avro.URLSchemaResolver;
+
+/**
+ * SchemaCache lookups. A hit is served from the cache index; a miss without
+ * a schema URL is a failed lookup; a miss with one fetches the schema, which
+ * is measured against a schema server on the loopback interface.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchemaCacheBenchmark {
+
+	@Param({ "ProductInformationManagementCapability/CreateProduct",
+			"Customer/CreateCustomer" })
+	public String message;
+
+	private String topic;
+	private String version;
+	private long fingerprint;
+	private HttpServer server;
+	private URL schemaUrl;
+
+	@Setup
+	public void setUp() throws IOException {
+		SampleMessages.loadIntoSchemaCache(message);
+		Schema schema = SampleMessages.getSchema(message);
+		topic = schema.getProp("topic");
+		version = schema.getProp("version");
+		fingerprint = SchemaCache.getFingerprint(topic, version);
+
+		final byte[] schemaJson = schema.toString().getBytes("UTF-8");
+		// Without it, delayed ACKs dominate the loopback round trip
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(200, schemaJson.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(schemaJson);
+				out.close();
+			}
+		});
+		server.start();
+		schemaUrl = new URL("http://127.0.0.1:"
+				+ server.getAddress().getPort() + "/schemas" + topic);
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Benchmark
+	public Schema hit() throws IOException {
+		return SchemaCache.getSchema(topic, version);
+	}
+
+	@Benchmark
+	public Schema hitByFingerprint() {
+		return SchemaCache.getSchemaByFingerprint(fingerprint);
+	}
+
+	@Benchmark
+	public Schema miss() throws IOException {
+		return SchemaCache.getSchema(topic, "0.0.0");
+	}
+
+	/**
+	 * The fetch a miss with a schema URL makes before the schema is cached.
+	 * Fetched through the resolver directly, since once cached the schema
+	 * would be a hit.
+	 */
+	@Benchmark
+	public Schema missFetch() throws IOException {
+		return new URLSchemaResolver().resolve(schemaUrl);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.IndexedRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.x.xfabric.helper.DirectBufferPool;
+import com.x.xfabric.helper.XFabricMessage;
+import com.x.xfabric.helper.avro.AvroContentType;
+import com.x.xfabric.helper.avro.AvroEncDecoder;
+
+/**
+ * The inbound path: building an XFabricMessage from a request, and reading
+ * the message from it in the ways the library offers. The message's
+ * contract is loaded into the SchemaCache first, so the writer schema is a
+ * cache hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XFabricMessageBenchmark {
+
+	@Param({ "ProductInformationManagementCapability/CreateProduct",
+			"OrderManagement/CreateOrder", "Customer/CreateCustomer" })
+	public String message;
+
+	@Param({ "AVRO_BINARY", "AVRO_JSON" })
+	public AvroContentType contentType;
+
+	private Schema schema;
+	private MockHttpServletRequest request;
+	private DirectBufferPool pool;
+	private String lastField;
+
+	@Setup
+	public void setUp() throws IOException {
+		SampleMessages.loadIntoSchemaCache(message);
+		schema = SampleMessages.getSchema(message);
+		byte[] body = AvroEncDecoder.encode(SampleMessages.newRecord(schema),
+				contentType);
+		String topic = schema.getProp("topic");
+		request = new MockHttpServletRequest(topic, body)
+				.setHeader("Content-Type", contentType.getContentType())
+				.setHeader("Authorization", "Bearer benchmark-token")
+				.setHeader("X-XC-TENANT-ID", "benchmark-tenant")
+				.setHeader("X-XC-PUBLISHER-ID", "benchmark-publisher")
+				.setHeader("X-XC-MESSAGE-GUID",
+						"3f2504e0-4f89-11d3-9a0c-0305e82c3301")
+				.setHeader("X-XC-SCHEMA-VERSION", schema.getProp("version"))
+				.setHeader("X-XC-SCHEMA-URI",
+						"http://localhost:1/schemas" + topic);
+		pool = new DirectBufferPool(16, 1 << 20);
+		// Reading the last field makes the lazy view scan the whole record
+		List<Schema.Field> fields = schema.getFields();
+		lastField = fields.get(fields.size() - 1).name();
+	}
+
+	@Benchmark
+	public XFabricMessage construct() throws IOException {
+		return new XFabricMessage(request);
+	}
+
+	@Benchmark
+	public void constructPooled() throws IOException {
+		new XFabricMessage(request, pool).release();
+	}
+
+	@Benchmark
+	public IndexedRecord getMessage() throws IOException {
+		return new XFabricMessage(request).getMessage(schema);
+	}
+
+	@Benchmark
+	public IndexedRecord getMessageStreamed() throws IOException {
+		return new XFabricMessage(request, true).getMessage(schema);
+	}
+
+	@Benchmark
+	public String getMessageAsJsonString() throws IOException {
+		return new XFabricMessage(request).getMessageAsJsonString();
+	}
+
+	@Benchmark
+	public Object getLazyMessageField() throws IOException {
+		return new XFabricMessage(request).getLazyMessage().get(lastField);
+	}
+
+	@Benchmark
+	public GenericRecord getMessageFields() throws IOException {
+		return new XFabricMessage(request).getMessageFields(lastField);
+	}
+}
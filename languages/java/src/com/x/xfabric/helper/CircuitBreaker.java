@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker guarding one fabric endpoint/topic.
+ * 
+ * After failureThreshold consecutive failures the breaker opens and calls are
+ * rejected without touching the network. Once openMillis have passed, a
+ * single trial call is let through (half-open): its success closes the
+ * breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Notified when a breaker changes state
+	 */
+	public interface Listener {
+		void stateChanged(CircuitBreaker breaker, State from, State to);
+	}
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final Listener listener;
+	private final AtomicReference<State> state = new AtomicReference<State>(
+			State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong openedAt = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            what the breaker guards, e.g. the topic URL
+	 * @param failureThreshold
+	 *            consecutive failures that open the breaker
+	 * @param openMillis
+	 *            time the breaker stays open before a trial call
+	 * @param listener
+	 *            notified of state changes, may be null
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long openMillis,
+			Listener listener) {
+		if (failureThreshold <= 0) {
+			throw new IllegalArgumentException(
+					"failureThreshold must be positive");
+		}
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openMillis * 1000000L;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return true if a call may go ahead now
+	 */
+	public boolean allowRequest() {
+		State current = state.get();
+		if (current == State.CLOSED) {
+			return true;
+		}
+		if (current == State.OPEN
+				&& System.nanoTime() - openedAt.get() >= openNanos) {
+			// only one caller wins the transition and makes the trial call
+			return transition(State.OPEN, State.HALF_OPEN);
+		}
+		return false;
+	}
+
+	/**
+	 * Records a successful call
+	 */
+	public void onSuccess() {
+		consecutiveFailures.set(0);
+		State current = state.get();
+		if (current != State.CLOSED) {
+			transition(current, State.CLOSED);
+		}
+	}
+
+	/**
+	 * Records a failed call
+	 */
+	public void onFailure() {
+		int failures = consecutiveFailures.incrementAndGet();
+		State current = state.get();
+		if (current == State.HALF_OPEN
+				|| (current == State.CLOSED && failures >= failureThreshold)) {
+			openedAt.set(System.nanoTime());
+			transition(current, State.OPEN);
+		}
+	}
+
+	private boolean transition(State from, State to) {
+		if (state.compareAndSet(from, to)) {
+			if (listener != null) {
+				listener.stateChanged(this, from, to);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * @return what the breaker guards
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [" + state.get() + "]";
+	}
+}
@@ -0,0 +1,60 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression codec for message bodies, identified by its HTTP
+ * Content-Encoding token. Register implementations with
+ * {@link ContentEncoding#register(ContentCodec)} to accept them inbound, and
+ * select one with {@link ContentEncoding#setOutboundCodec(ContentCodec)} to
+ * use it for posts.
+ */
+public interface ContentCodec {
+
+	/**
+	 * @return the Content-Encoding token, e.g. "gzip"; matched without regard
+	 *         to case
+	 */
+	String getName();
+
+	/**
+	 * @param out
+	 *            stream receiving the compressed bytes
+	 * @return stream that compresses what is written to it into out; closing
+	 *         it must finish the compressed data and close out
+	 * @throws IOException
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * @param in
+	 *            compressed stream
+	 * @return stream of the decompressed bytes; closing it must close in
+	 * @throws IOException
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,295 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.x.xfabric.helper.avro.ReusableByteArrayOutputStream;
+
+/**
+ * Content-Encoding support for message bodies. Inbound bodies are
+ * decompressed as a stream by any registered codec; outbound bodies are
+ * compressed with the outbound codec when they are at least the compression
+ * threshold in size. Outbound compression is off until an outbound codec is
+ * set. Decompressed bodies are limited to the maximum decompressed size, so
+ * a small compressed body cannot expand without bound.
+ */
+public class ContentEncoding {
+
+	/**
+	 * gzip (RFC 1952)
+	 */
+	public static final ContentCodec GZIP = new ContentCodec() {
+		public String getName() {
+			return "gzip";
+		}
+
+		public OutputStream compress(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+
+		public InputStream decompress(InputStream in) throws IOException {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * HTTP deflate, i.e. zlib (RFC 1950) wrapped deflate data
+	 */
+	public static final ContentCodec DEFLATE = new ContentCodec() {
+		public String getName() {
+			return "deflate";
+		}
+
+		public OutputStream compress(OutputStream out) throws IOException {
+			return new DeflaterOutputStream(out);
+		}
+
+		public InputStream decompress(InputStream in) throws IOException {
+			return new InflaterInputStream(in);
+		}
+	};
+
+	/**
+	 * Default minimum body size, in bytes, for outbound compression. Smaller
+	 * bodies gain little and the codec header may even make them larger.
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * Default limit, in bytes, on the decompressed size of an inbound body
+	 */
+	public static final long DEFAULT_MAX_DECOMPRESSED_SIZE = 64L * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 4096;
+	private static final String IDENTITY = "identity";
+
+	private static final ConcurrentMap<String, ContentCodec> codecs = new ConcurrentHashMap<String, ContentCodec>();
+	private static volatile ContentCodec outboundCodec;
+	private static volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	private static volatile long maxDecompressedSize = DEFAULT_MAX_DECOMPRESSED_SIZE;
+
+	static {
+		register(GZIP);
+		register(DEFLATE);
+	}
+
+	private ContentEncoding() {
+	}
+
+	/**
+	 * Makes a codec available for decompressing inbound bodies, replacing any
+	 * codec registered under the same name.
+	 * 
+	 * @param codec
+	 */
+	public static void register(ContentCodec codec) {
+		codecs.put(codec.getName().toLowerCase(Locale.ENGLISH), codec);
+	}
+
+	/**
+	 * @param name
+	 *            Content-Encoding token
+	 * @return the registered codec, or null if there is none
+	 */
+	public static ContentCodec getCodec(String name) {
+		return codecs.get(name.trim().toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Sets the codec used to compress outbound bodies. The codec is also
+	 * registered for inbound use.
+	 * 
+	 * @param codec
+	 *            the codec, or null to send bodies uncompressed
+	 */
+	public static void setOutboundCodec(ContentCodec codec) {
+		if (codec != null) {
+			register(codec);
+		}
+		outboundCodec = codec;
+	}
+
+	/**
+	 * @return the codec used to compress outbound bodies, or null
+	 */
+	public static ContentCodec getOutboundCodec() {
+		return outboundCodec;
+	}
+
+	/**
+	 * @param bytes
+	 *            minimum size of an outbound body for it to be compressed
+	 */
+	public static void setCompressionThreshold(int bytes) {
+		compressionThreshold = bytes;
+	}
+
+	public static int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param bytes
+	 *            largest decompressed size of an inbound body; reading past it
+	 *            fails with an IOException
+	 */
+	public static void setMaxDecompressedSize(long bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("bytes must be positive");
+		}
+		maxDecompressedSize = bytes;
+	}
+
+	public static long getMaxDecompressedSize() {
+		return maxDecompressedSize;
+	}
+
+	/**
+	 * @param length
+	 *            size of an outbound body
+	 * @return the codec to compress the body with, or null to send it as is
+	 */
+	static ContentCodec selectOutboundCodec(int length) {
+		ContentCodec codec = outboundCodec;
+		return (codec != null && length >= compressionThreshold) ? codec
+				: null;
+	}
+
+	/**
+	 * @param data
+	 * @param codec
+	 * @return data compressed with codec
+	 * @throws IOException
+	 */
+	public static byte[] compress(byte[] data, ContentCodec codec)
+			throws IOException {
+		ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream(
+				Math.max(64, data.length / 4));
+		OutputStream compressed = codec.compress(out);
+		compressed.write(data);
+		compressed.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Wraps a body so that it reads decompressed according to its
+	 * Content-Encoding header. Stacked encodings, e.g. "deflate, gzip", are
+	 * undone in reverse order.
+	 * 
+	 * @param in
+	 *            body as received
+	 * @param contentEncoding
+	 *            value of the Content-Encoding header, or null
+	 * @return the decompressed body, limited to the maximum decompressed size,
+	 *         or in itself if it is not encoded
+	 * @throws IOException
+	 *             if an encoding has no registered codec
+	 */
+	public static InputStream decompress(InputStream in, String contentEncoding)
+			throws IOException {
+		if (contentEncoding == null) {
+			return in;
+		}
+		InputStream decoded = in;
+		String[] names = contentEncoding.split(",");
+		for (int i = names.length - 1; i >= 0; i--) {
+			String name = names[i].trim();
+			if (name.length() == 0 || name.equalsIgnoreCase(IDENTITY)) {
+				continue;
+			}
+			ContentCodec codec = getCodec(name);
+			if (codec == null) {
+				throw new IOException("Unsupported Content-Encoding: " + name);
+			}
+			decoded = codec.decompress(decoded);
+		}
+		return (decoded == in) ? in : new LimitedInputStream(decoded,
+				maxDecompressedSize);
+	}
+
+	/**
+	 * Fails reads once more than limit bytes have been read
+	 */
+	static final class LimitedInputStream extends FilterInputStream {
+
+		private final long limit;
+		private long count;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			// read one byte more than allowed, to tell a body of exactly
+			// limit bytes from a longer one
+			int n = super.read(b, off,
+					(int) Math.min(len, limit - count + 1));
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, limit - count + 1));
+			count(skipped);
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void count(long n) throws IOException {
+			count += n;
+			if (count > limit) {
+				throw new IOException("Decompressed body exceeds " + limit
+						+ " bytes");
+			}
+		}
+	}
+}
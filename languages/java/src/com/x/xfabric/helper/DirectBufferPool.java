@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct ByteBuffers for message bodies, in power of two size
+ * classes. Direct buffers are expensive to allocate and are only freed by
+ * the garbage collector, so bodies that are forwarded to NIO channels reuse
+ * them instead. Safe for use from concurrent request threads.
+ */
+public class DirectBufferPool {
+
+	/**
+	 * Smallest buffer handed out, in bytes
+	 */
+	private static final int MIN_CAPACITY = 4096;
+	private static final int MIN_SHIFT = 12;
+
+	private final int maxBuffersPerSize;
+	private final int maxPooledCapacity;
+	private final List<Queue<ByteBuffer>> free = new ArrayList<Queue<ByteBuffer>>();
+	private final List<AtomicInteger> freeCounts = new ArrayList<AtomicInteger>();
+
+	/**
+	 * @param maxBuffersPerSize
+	 *            most idle buffers kept per size class
+	 * @param maxPooledCapacity
+	 *            largest buffer kept for reuse; larger bodies get a buffer of
+	 *            their own that is left to the garbage collector
+	 */
+	public DirectBufferPool(int maxBuffersPerSize, int maxPooledCapacity) {
+		this.maxBuffersPerSize = maxBuffersPerSize;
+		this.maxPooledCapacity = Math.max(MIN_CAPACITY, maxPooledCapacity);
+		for (int size = MIN_CAPACITY; size > 0 && size <= this.maxPooledCapacity; size <<= 1) {
+			free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeCounts.add(new AtomicInteger());
+		}
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if none is free.
+	 * 
+	 * @param length
+	 *            number of bytes needed
+	 * @return a direct buffer with position 0 and limit length; its capacity
+	 *         may be larger
+	 */
+	public ByteBuffer acquire(int length) {
+		int sizeClass = sizeClass(length);
+		ByteBuffer buffer = null;
+		if (sizeClass < free.size()) {
+			buffer = free.get(sizeClass).poll();
+			if (buffer != null) {
+				freeCounts.get(sizeClass).decrementAndGet();
+			} else {
+				buffer = ByteBuffer.allocateDirect(MIN_CAPACITY << sizeClass);
+			}
+		} else {
+			buffer = ByteBuffer.allocateDirect(length);
+		}
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer obtained from acquire() to the pool. The buffer, and
+	 * any view of it, must not be used afterwards.
+	 * 
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || capacity < MIN_CAPACITY
+				|| Integer.bitCount(capacity) != 1) {
+			return;
+		}
+		int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+		if (sizeClass >= free.size()) {
+			return;
+		}
+		if (freeCounts.get(sizeClass).incrementAndGet() <= maxBuffersPerSize) {
+			free.get(sizeClass).offer(buffer);
+		} else {
+			freeCounts.get(sizeClass).decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return number of idle buffers in the pool
+	 */
+	public int getFreeCount() {
+		int count = 0;
+		for (AtomicInteger c : freeCounts) {
+			count += c.get();
+		}
+		return count;
+	}
+
+	private static int sizeClass(int length) {
+		if (length <= MIN_CAPACITY) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+	}
+}
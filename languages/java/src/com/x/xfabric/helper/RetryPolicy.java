@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed posts are retried and how long to back off between
+ * attempts.
+ * 
+ * Server errors (5xx), throttling (429), timeouts and refused connections are
+ * retryable; any other failure, e.g. a 4xx rejection of the message, is not.
+ * Delays grow exponentially from the base delay up to the maximum delay, and
+ * the actual delay is drawn uniformly below that bound ("full jitter") so that
+ * clients failing together do not retry together.
+ */
+public class RetryPolicy {
+
+	/** HTTP status returned by the fabric when throttling a publisher */
+	public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private int maxAttempts = 5;
+	private long baseDelayMillis = 100;
+	private long maxDelayMillis = 10000;
+
+	public RetryPolicy() {
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            total number of attempts, including the first one
+	 * @param baseDelayMillis
+	 *            upper bound of the delay before the first retry
+	 * @param maxDelayMillis
+	 *            upper bound of the delay before any retry
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis,
+			long maxDelayMillis) {
+		setMaxAttempts(maxAttempts);
+		setBaseDelayMillis(baseDelayMillis);
+		setMaxDelayMillis(maxDelayMillis);
+	}
+
+	/**
+	 * @param t
+	 *            failure of an attempt
+	 * @return true if the post may succeed when retried
+	 */
+	public boolean isRetryable(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException)
+				&& t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (t instanceof XFabricHttpException) {
+			return isRetryableStatus(((XFabricHttpException) t)
+					.getHttpResponseCode());
+		}
+		return t instanceof SocketTimeoutException
+				|| t instanceof HttpTimeoutException
+				|| t instanceof ConnectException;
+	}
+
+	/**
+	 * @param httpResponseCode
+	 * @return true for server errors and throttling
+	 */
+	public boolean isRetryableStatus(int httpResponseCode) {
+		return httpResponseCode >= 500
+				|| httpResponseCode == HTTP_TOO_MANY_REQUESTS;
+	}
+
+	/**
+	 * @param attempt
+	 *            number of attempts made so far, starting at 1
+	 * @return delay before the next attempt, in milliseconds
+	 */
+	public long getDelayMillis(int attempt) {
+		int shift = Math.min(attempt - 1, 30);
+		long bound = Math.min(maxDelayMillis, baseDelayMillis << shift);
+		if (bound <= 0) {
+			return 0;
+		}
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	/**
+	 * @return the maxAttempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            the maxAttempts to set
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts <= 0) {
+			throw new IllegalArgumentException("maxAttempts must be positive");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * @return the baseDelayMillis
+	 */
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	/**
+	 * @param baseDelayMillis
+	 *            the baseDelayMillis to set
+	 */
+	public void setBaseDelayMillis(long baseDelayMillis) {
+		this.baseDelayMillis = Math.max(0, baseDelayMillis);
+	}
+
+	/**
+	 * @return the maxDelayMillis
+	 */
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	/**
+	 * @param maxDelayMillis
+	 *            the maxDelayMillis to set
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = Math.max(0, maxDelayMillis);
+	}
+}
@@ -24,32 +24,56 @@ package com.x.xfabric.helper;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.apache.avro.AvroTypeException;
 import org.apache.avro.Protocol;
 import org.apache.avro.Schema;
 
+import com.x.xfabric.helper.avro.AvroEncDecoder;
+import com.x.xfabric.helper.avro.SchemaFingerprint;
+import com.x.xfabric.helper.avro.SchemaResolutionException;
 import com.x.xfabric.helper.avro.URLSchemaResolver;
+import com.x.xfabric.helper.metrics.Metrics;
 
 /**
  * @author vichandrasekaran
  * 
- * Container for caching avro schema definitions. 
+ * Container for caching avro schema definitions. Safe for use from
+ * concurrent request threads.
  * Provides utility methods for 
  *    loading the cache from avpr files/schema URL and 
  *    for retrieving schema objects from the local cache
  */
 public class SchemaCache {
 
+	private static final Logger log = Logger.getLogger(SchemaCache.class
+			.getName());
+
 	static class SchemaDescriptor {
 
-		private String topic;
-		private String version;
+		private final String topic;
+		private final String version;
 
 		public SchemaDescriptor(String topic, String version) {
 			this.topic = topic;
@@ -81,11 +105,217 @@ public class SchemaCache {
 		}
 	}
 
-	private static Map<SchemaDescriptor, Schema> cache = new HashMap<SchemaDescriptor, Schema>();
+	/**
+	 * Immutable open-addressed table of schemas keyed by their 64-bit parsing
+	 * fingerprint, so that a fingerprint lookup neither boxes nor hashes
+	 * strings.
+	 * 
+	 * A fingerprint identifies schema content, so entries stay valid when a
+	 * topic/version is redefined; a new table is the previous one plus the
+	 * added schemas, and only those are fingerprinted.
+	 */
+	static final class FingerprintTable {
+
+		private final long[] keys;
+		private final Schema[] values;
+		private final int mask;
+		private int size;
+		// fingerprint 0 would collide with the empty slot marker
+		private Schema zeroValue;
+
+		/**
+		 * @param previous
+		 *            table to extend, or null
+		 * @param added
+		 *            schemas to add to it
+		 */
+		FingerprintTable(FingerprintTable previous, Collection<Schema> added) {
+			int count = ((previous != null) ? previous.size : 0) + added.size();
+			int capacity = 8;
+			while (capacity < count * 2) {
+				capacity <<= 1;
+			}
+			mask = capacity - 1;
+			if (previous != null && previous.keys.length == capacity) {
+				keys = previous.keys.clone();
+				values = previous.values.clone();
+				size = previous.size;
+			} else {
+				keys = new long[capacity];
+				values = new Schema[capacity];
+				if (previous != null) {
+					for (int i = 0; i < previous.keys.length; i++) {
+						if (previous.keys[i] != 0) {
+							put(previous.keys[i], previous.values[i]);
+						}
+					}
+				}
+			}
+			if (previous != null) {
+				zeroValue = previous.zeroValue;
+			}
+			for (Schema s : added) {
+				put(SchemaFingerprint.fingerprint64(s), s);
+			}
+		}
+
+		private void put(long fingerprint, Schema s) {
+			if (fingerprint == 0) {
+				zeroValue = s;
+				return;
+			}
+			int i = slot(fingerprint);
+			while (keys[i] != 0 && keys[i] != fingerprint) {
+				i = (i + 1) & mask;
+			}
+			if (keys[i] == 0) {
+				size++;
+			}
+			keys[i] = fingerprint;
+			values[i] = s;
+		}
+
+		Schema get(long fingerprint) {
+			if (fingerprint == 0) {
+				return zeroValue;
+			}
+			int i = slot(fingerprint);
+			long key;
+			while ((key = keys[i]) != 0) {
+				if (key == fingerprint) {
+					return values[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		private int slot(long fingerprint) {
+			return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+		}
+	}
+
+	/**
+	 * Snapshot of the cached schemas: by topic and then by version, and by
+	 * fingerprint.
+	 */
+	private static final class Index {
+
+		final Map<String, Map<String, Schema>> topics;
+		final FingerprintTable fingerprints;
+
+		Index(Map<String, Map<String, Schema>> topics,
+				FingerprintTable fingerprints) {
+			this.topics = topics;
+			this.fingerprints = fingerprints;
+		}
+	}
+
+	/**
+	 * Cached schemas. The index is immutable and replaced as a whole when
+	 * schemas are added, so lookups take no locks and a cache hit is served
+	 * without allocating a lookup key.
+	 */
+	private static volatile Index cache = new Index(
+			Collections.<String, Map<String, Schema>> emptyMap(),
+			new FingerprintTable(null, Collections.<Schema> emptyList()));
+
+	/**
+	 * Whether loading a protocol that redefines a cached topic/version with
+	 * different content fails instead of replacing the cached schema
+	 */
+	private static volatile boolean strictVersionCheck;
+
+	/**
+	 * Topic/versions whose content changed while loading protocols
+	 */
+	private static final Set<String> versionConflicts = new CopyOnWriteArraySet<String>();
+
+	/**
+	 * Optional on-disk store that fetched schemas are written through to
+	 */
+	private static volatile SchemaStore schemaStore;
+
+	/**
+	 * Remote schema fetches currently in progress. Only one fetch runs per
+	 * topic/version; concurrent callers wait on the same task.
+	 */
+	private static final ConcurrentMap<SchemaDescriptor, FutureTask<Schema>> pendingFetches = new ConcurrentHashMap<SchemaDescriptor, FutureTask<Schema>>();
+
+	private static Schema lookup(String topic, String version) {
+		Map<String, Schema> versions = cache.topics.get(topic);
+		return (versions != null) ? versions.get(version) : null;
+	}
+
+	private static void put(String topic, String version, Schema schema) {
+		try {
+			putAll(Collections.singletonList(schema), topic, version, false);
+		} catch (SchemaConflictException e) {
+			// not thrown when replacing
+		}
+	}
+
+	/**
+	 * Adds schemas to the cache in one swap of the index. With a null topic,
+	 * each schema is indexed by its own topic and version props.
+	 * 
+	 * With checkConflicts set, schemas that give a cached or earlier
+	 * topic/version different content are recorded as version conflicts, and
+	 * under strict version checking fail the whole call.
+	 */
+	private static synchronized void putAll(List<Schema> schemas,
+			String topic, String version, boolean checkConflicts)
+			throws SchemaConflictException {
+		Map<String, Map<String, Schema>> index = new HashMap<String, Map<String, Schema>>(
+				cache.topics);
+		Map<String, Map<String, Schema>> copied = new HashMap<String, Map<String, Schema>>();
+		for (Schema s : schemas) {
+			String t = (topic != null) ? topic : s.getProp("topic");
+			String v = (topic != null) ? version : s.getProp("version");
+			Map<String, Schema> versions = copied.get(t);
+			if (versions == null) {
+				Map<String, Schema> current = index.get(t);
+				versions = (current != null) ? new HashMap<String, Schema>(
+						current) : new HashMap<String, Schema>();
+				copied.put(t, versions);
+			}
+			Schema previous = versions.put(v, s);
+			if (checkConflicts
+					&& previous != null
+					&& SchemaFingerprint.fingerprint64(previous) != SchemaFingerprint
+							.fingerprint64(s)) {
+				if (strictVersionCheck) {
+					throw new SchemaConflictException(t, v);
+				}
+				versionConflicts.add(new SchemaDescriptor(t, v).toString());
+			}
+		}
+		for (Map.Entry<String, Map<String, Schema>> e : copied.entrySet()) {
+			index.put(e.getKey(), Collections.unmodifiableMap(e.getValue()));
+		}
+		cache = new Index(Collections.unmodifiableMap(index),
+				new FingerprintTable(cache.fingerprints, schemas));
+	}
+
+	/**
+	 * @return the schemas in a protocol that declare a topic and version
+	 */
+	private static List<Schema> parseProtocol(String avprLocation)
+			throws IOException {
+		Protocol protocol = Protocol.parse(new File(avprLocation));
+		List<Schema> schemas = new ArrayList<Schema>();
+		for (Schema s : protocol.getTypes()) {
+			if (s.getProp("topic") != null && s.getProp("version") != null) {
+				schemas.add(s);
+			}
+		}
+		return schemas;
+	}
 
 	/**
 	 * Add schema definitions from the passed in avpr files
-	 * to the local cache
+	 * to the local cache. The files are parsed in parallel, and
+	 * their schemas become visible together once all have been parsed.
 	 * 
 	 * @param avprFiles
 	 * @throws IOException
@@ -93,10 +323,97 @@ public class SchemaCache {
 	 */
 	public static void loadSchema(List<String> avprFiles) throws IOException,
 			URISyntaxException {
-		Iterator<String> iter = avprFiles.iterator();
-		while (iter.hasNext()) {
-			String avprLocation = iter.next();
-			loadSchema(avprLocation);
+		loadSchema(avprFiles, false);
+	}
+
+	/**
+	 * Add schema definitions from the passed in avpr files to the local
+	 * cache, parsing the files in parallel across the available processors.
+	 * Nothing is added unless all files parse and, under strict version
+	 * checking, no topic/version is redefined with different content.
+	 * 
+	 * With precomputeResolution set, a compiled reader is also built for
+	 * every pair of versions of each topic and kept in the
+	 * {@link AvroEncDecoder#getDatumCache() datum cache}, so that the first
+	 * message of a version pair does not pay for schema resolution on any
+	 * thread.
+	 * 
+	 * @param avprFiles
+	 * @param precomputeResolution
+	 * @throws SchemaConflictException
+	 *             if strict version checking is on and a file redefines a
+	 *             topic/version with different content
+	 * @throws IOException
+	 * @throws URISyntaxException
+	 */
+	public static void loadSchema(List<String> avprFiles,
+			boolean precomputeResolution) throws IOException,
+			URISyntaxException {
+		int threads = Math.max(1, Math.min(avprFiles.size(), Runtime
+				.getRuntime().availableProcessors()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<Schema>>> parsed = new ArrayList<Future<List<Schema>>>();
+			for (final String avprLocation : avprFiles) {
+				parsed.add(pool.submit(new Callable<List<Schema>>() {
+					public List<Schema> call() throws IOException {
+						return parseProtocol(avprLocation);
+					}
+				}));
+			}
+			List<Schema> schemas = new ArrayList<Schema>();
+			for (Future<List<Schema>> future : parsed) {
+				schemas.addAll(await(future));
+			}
+			putAll(schemas, null, null, true);
+
+			if (precomputeResolution) {
+				List<Future<?>> resolved = new ArrayList<Future<?>>();
+				for (final Map<String, Schema> versions : cache.topics.values()) {
+					resolved.add(pool.submit(new Callable<Void>() {
+						public Void call() {
+							precomputeResolution(versions.values());
+							return null;
+						}
+					}));
+				}
+				for (Future<?> future : resolved) {
+					await(future);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void precomputeResolution(Iterable<Schema> versions) {
+		for (Schema writer : versions) {
+			for (Schema reader : versions) {
+				try {
+					AvroEncDecoder.getDatumCache().precompile(writer, reader);
+				} catch (AvroTypeException e) {
+					// these versions cannot be read as each other
+				}
+			}
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading schemas");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
 		}
 	}
 
@@ -105,21 +422,15 @@ public class SchemaCache {
 	 * to the local cache 
 	 * 
 	 * @param avprLocation
+	 * @throws SchemaConflictException
+	 *             if strict version checking is on and the file redefines a
+	 *             cached topic/version with different content
 	 * @throws IOException
 	 * @throws URISyntaxException
 	 */
 	public static void loadSchema(String avprLocation) throws IOException,
 			URISyntaxException {
-		Protocol protocol = Protocol.parse(new File(avprLocation));
-		Iterator<Schema> schemaIterator = protocol.getTypes().iterator();
-		while (schemaIterator.hasNext()) {
-			Schema s = schemaIterator.next();
-			if (s.getProp("topic") != null && s.getProp("version") != null) {
-				SchemaCache.SchemaDescriptor desc = new SchemaCache.SchemaDescriptor(
-						s.getProp("topic"), s.getProp("version"));
-				cache.put(desc, s);
-			}
-		}
+		putAll(parseProtocol(avprLocation), null, null, true);
 	}
 
 	/**
@@ -130,23 +441,220 @@ public class SchemaCache {
 	 * @param topic
 	 * @param version
 	 * @param schemaUrl
-	 * @return schema object for the given topic/version
+	 * @return schema object for the given topic/version, or null if it is not
+	 *         cached and no schemaUrl is given
+	 * @throws SchemaResolutionException
+	 *             if the schema cannot be fetched from schemaUrl, or fetching
+	 *             it failed recently
 	 * @throws IOException
 	 */
 	public static Schema getSchema(String topic, String version, URL schemaUrl)
 			throws IOException {
+		Schema s = lookup(topic, version);
+		if (s != null) {
+			Metrics.getRecorder().recordSchemaCacheHit();
+			return s;
+		}
+		Metrics.getRecorder().recordSchemaCacheMiss();
+		if (schemaUrl == null) {
+			return null;
+		}
+		return fetchSchema(topic, version, schemaUrl);
+	}
+
+	/**
+	 * Reads the schema from the schema store if there is one, otherwise
+	 * fetches it and writes it through to the store. The store only saves
+	 * fetches, so failing to read or write it is logged and otherwise
+	 * ignored.
+	 * 
+	 * @throws SchemaResolutionException
+	 *             if the schema cannot be fetched
+	 */
+	private static Schema resolve(String topic, String version, URL schemaUrl)
+			throws IOException {
+		SchemaStore store = schemaStore;
+		if (store == null) {
+			return new URLSchemaResolver().resolve(schemaUrl);
+		}
+		try {
+			SchemaStore.Entry entry = store.get(topic, version, schemaUrl);
+			if (entry != null) {
+				return entry.getSchema();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot read stored schema for " + topic
+					+ "/" + version + ", fetching it", e);
+		}
+		URLSchemaResolver.FetchResult result = new URLSchemaResolver()
+				.resolve(schemaUrl, null, 0);
+		try {
+			store.put(new SchemaStore.Entry(topic, version, schemaUrl,
+					result.getSchema(), result.getEtag(), result
+							.getLastModified()));
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot store schema for " + topic + "/"
+					+ version, e);
+		}
+		return result.getSchema();
+	}
+
+	/**
+	 * Fetches the schema from the schemaUrl, making sure that only one fetch
+	 * is in flight for a given topic/version. Callers that arrive while a
+	 * fetch is running wait for its result instead of starting their own.
+	 */
+	private static Schema fetchSchema(final String topic, final String version,
+			final URL schemaUrl) throws IOException {
 		SchemaDescriptor desc = new SchemaDescriptor(topic, version);
-		if (cache.containsKey(desc)) {
-			return cache.get(desc);
-		} else if (schemaUrl != null) {
-			URLSchemaResolver resolver = new URLSchemaResolver();
-			Schema s = resolver.resolve(schemaUrl);
-			if (s != null) {
-				cache.put(desc, s);
-				return s;
+		FutureTask<Schema> task = pendingFetches.get(desc);
+		if (task == null) {
+			FutureTask<Schema> created = new FutureTask<Schema>(
+					new Callable<Schema>() {
+						public Schema call() throws IOException {
+							// another fetch may have completed since the miss
+							Schema s = lookup(topic, version);
+							if (s == null) {
+								s = resolve(topic, version, schemaUrl);
+								if (s != null) {
+									put(topic, version, s);
+								}
+							}
+							return s;
+						}
+					});
+			task = pendingFetches.putIfAbsent(desc, created);
+			if (task == null) {
+				task = created;
+				try {
+					task.run();
+				} finally {
+					pendingFetches.remove(desc, task);
+				}
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while fetching schema "
+					+ desc);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
+			throw new IOException("Failed to fetch schema " + desc, cause);
 		}
-		return null;
+	}
+
+	/**
+	 * Sets the on-disk store for schemas fetched from schema URLs and preloads
+	 * the cache with all stored schemas, so that they need not be fetched
+	 * again after a restart. Schemas fetched from then on are written through
+	 * to the store.
+	 * 
+	 * @param store
+	 *            the store, or null to stop using one
+	 */
+	public static void setSchemaStore(SchemaStore store) {
+		if (store != null) {
+			for (SchemaStore.Entry entry : store.loadAll()) {
+				put(entry.getTopic(), entry.getVersion(), entry.getSchema());
+			}
+		}
+		schemaStore = store;
+	}
+
+	/**
+	 * Revalidates every stored schema with a conditional GET against its URL,
+	 * replacing the stored and cached copies of schemas that changed. Meant
+	 * to run in the background after startup, since the preloaded schemas are
+	 * served meanwhile.
+	 * 
+	 * @return number of schemas that changed
+	 * @throws IOException
+	 *             if the store cannot be updated
+	 */
+	public static int revalidateStoredSchemas() throws IOException {
+		SchemaStore store = schemaStore;
+		if (store == null) {
+			return 0;
+		}
+		int changed = 0;
+		URLSchemaResolver resolver = new URLSchemaResolver();
+		for (SchemaStore.Entry entry : store.loadAll()) {
+			URLSchemaResolver.FetchResult result;
+			try {
+				result = resolver.resolve(entry.getUrl(), entry.getEtag(),
+						entry.getLastModified());
+			} catch (SchemaResolutionException e) {
+				// keep serving the stored copy
+				continue;
+			}
+			if (!result.isNotModified()) {
+				store.put(new SchemaStore.Entry(entry.getTopic(), entry
+						.getVersion(), entry.getUrl(), result.getSchema(),
+						result.getEtag(), result.getLastModified()));
+				put(entry.getTopic(), entry.getVersion(), result.getSchema());
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Retrieve the cached schema with the given 64-bit parsing fingerprint.
+	 * Never fetches remotely. Schemas stay retrievable by fingerprint after
+	 * their topic/version is redefined with different content.
+	 * 
+	 * @param fingerprint
+	 *            CRC-64-AVRO fingerprint of the schema's parsing canonical form
+	 * @return the schema, or null if none is cached with this fingerprint
+	 */
+	public static Schema getSchemaByFingerprint(long fingerprint) {
+		return cache.fingerprints.get(fingerprint);
+	}
+
+	/**
+	 * @param topic
+	 * @param version
+	 * @return the 64-bit parsing fingerprint of the cached schema for the
+	 *         topic/version
+	 * @throws IllegalArgumentException
+	 *             if no schema is cached for the topic/version
+	 */
+	public static long getFingerprint(String topic, String version) {
+		Schema s = lookup(topic, version);
+		if (s == null) {
+			throw new IllegalArgumentException("No schema cached for " + topic
+					+ "/" + version);
+		}
+		return SchemaFingerprint.fingerprint64(s);
+	}
+
+	/**
+	 * Makes loading a protocol that redefines a cached topic/version with
+	 * different content fail with a SchemaConflictException, leaving the cache
+	 * unchanged. Off by default, in which case the new definition replaces
+	 * the cached one and the conflict is only recorded.
+	 * 
+	 * @param strict
+	 */
+	public static void setStrictVersionCheck(boolean strict) {
+		strictVersionCheck = strict;
+	}
+
+	/**
+	 * @return the topic/versions, as "topic/version", that were redefined with
+	 *         different content while loading protocols
+	 */
+	public static Set<String> getVersionConflicts() {
+		return Collections.unmodifiableSet(versionConflicts);
 	}
 
 	public static Schema getSchema(String topic, String version) throws IOException {
@@ -0,0 +1,231 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.avro.Schema;
+
+/**
+ * On-disk store of schemas fetched from schema URLs.
+ * 
+ * Each schema is kept in its own file, keyed by topic, version and URL,
+ * together with the ETag and Last-Modified values of the fetch so that it can
+ * be revalidated with a conditional GET. Files are replaced atomically, so a
+ * store can be shared by several processes.
+ * 
+ * @see SchemaCache#setSchemaStore(SchemaStore)
+ */
+public class SchemaStore {
+
+	private static final Logger log = Logger.getLogger(SchemaStore.class
+			.getName());
+
+	private static final String SUFFIX = ".schema";
+
+	/**
+	 * A stored schema and where it came from
+	 */
+	public static class Entry {
+
+		private final String topic;
+		private final String version;
+		private final URL url;
+		private final Schema schema;
+		private final String etag;
+		private final long lastModified;
+
+		public Entry(String topic, String version, URL url, Schema schema,
+				String etag, long lastModified) {
+			this.topic = topic;
+			this.version = version;
+			this.url = url;
+			this.schema = schema;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		public URL getUrl() {
+			return url;
+		}
+
+		public Schema getSchema() {
+			return schema;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+
+	private final File directory;
+
+	/**
+	 * @param directory
+	 *            directory holding the stored schemas, created if needed
+	 * @throws IOException
+	 */
+	public SchemaStore(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create schema store directory "
+					+ directory);
+		}
+		this.directory = directory;
+	}
+
+	/**
+	 * @param topic
+	 * @param version
+	 * @param url
+	 * @return the stored entry, or null if there is none
+	 * @throws IOException
+	 */
+	public Entry get(String topic, String version, URL url)
+			throws IOException {
+		File file = fileFor(topic, version, url);
+		return file.exists() ? read(file) : null;
+	}
+
+	/**
+	 * Stores or replaces an entry
+	 * 
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void put(Entry entry) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("topic", entry.getTopic());
+		props.setProperty("version", entry.getVersion());
+		props.setProperty("url", entry.getUrl().toString());
+		props.setProperty("schema", entry.getSchema().toString());
+		if (entry.getEtag() != null) {
+			props.setProperty("etag", entry.getEtag());
+		}
+		props.setProperty("lastModified",
+				Long.toString(entry.getLastModified()));
+
+		File file = fileFor(entry.getTopic(), entry.getVersion(),
+				entry.getUrl());
+		File tmp = File.createTempFile("store", ".tmp", directory);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot write schema store entry " + file);
+		}
+	}
+
+	/**
+	 * @return all stored entries; unreadable entries are skipped
+	 */
+	public List<Entry> loadAll() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		List<Entry> entries = new ArrayList<Entry>();
+		if (files != null) {
+			for (File file : files) {
+				try {
+					entries.add(read(file));
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Skipping unreadable schema "
+							+ file, e);
+				}
+			}
+		}
+		return entries;
+	}
+
+	private Entry read(File file) throws IOException {
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		try {
+			return new Entry(props.getProperty("topic"),
+					props.getProperty("version"), new URL(
+							props.getProperty("url")),
+					new Schema.Parser().parse(props.getProperty("schema")),
+					props.getProperty("etag"), Long.parseLong(props
+							.getProperty("lastModified", "0")));
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupt schema store entry " + file, e);
+		}
+	}
+
+	private File fileFor(String topic, String version, URL url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(topic.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(version.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(url.toString().getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder(48);
+			for (byte b : digest.digest()) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16));
+				name.append(Character.forDigit(b & 0xF, 16));
+			}
+			return new File(directory, name.append(SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
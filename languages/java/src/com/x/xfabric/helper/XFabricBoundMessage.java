@@ -23,9 +23,14 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.x.xfabric.helper;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
 
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
 import org.apache.avro.generic.IndexedRecord;
 
 import com.x.xfabric.helper.avro.AvroContentType;
@@ -63,9 +68,13 @@ public class XFabricBoundMessage {
 	 */
 	private byte[] rawMessage;
 	/**
-	 * Avro content-type - binary or json
+	 * Avro content-type - binary, json, single-object or container
 	 */
 	private AvroContentType contentType;
+	/**
+	 * Schema of the record the message was encoded from, or null
+	 */
+	private Schema schema;
 	/**
 	 * Schema version of the message
 	 */
@@ -75,6 +84,14 @@ public class XFabricBoundMessage {
 	 * schema
 	 */
 	private String schemaUri;
+	/**
+	 * message body as posted, compressed if it was big enough
+	 */
+	private byte[] encodedMessage;
+	/**
+	 * Content-Encoding of encodedMessage, or null if it is not compressed
+	 */
+	private String contentEncoding;
 
 	/**
 	 * 
@@ -86,11 +103,13 @@ public class XFabricBoundMessage {
 	public XFabricBoundMessage(IndexedRecord message,
 			AvroContentType contentType) throws IOException {
 		this.contentType = contentType;
+		this.schema = message.getSchema();
 		this.rawMessage = AvroEncDecoder.encode(message, contentType);
 	}
 	
 	public XFabricBoundMessage(IndexedRecord message) throws IOException {
 		this.contentType = AvroContentType.AVRO_BINARY;
+		this.schema = message.getSchema();
 		this.rawMessage = AvroEncDecoder.encode(message, contentType);
 	}	
 
@@ -99,6 +118,45 @@ public class XFabricBoundMessage {
 		this.rawMessage = jsonMessage.getBytes("utf-8");
 	}
 
+	/**
+	 * Creates a batch message carrying many records of one schema in a single
+	 * Avro object container payload, sent as avro/container.
+	 * 
+	 * @param schema
+	 *            schema of every record
+	 * @param records
+	 * @param codec
+	 *            block compression, e.g. CodecFactory.deflateCodec(6), or null
+	 *            for none
+	 * @throws IOException
+	 */
+	public XFabricBoundMessage(Schema schema,
+			Iterable<? extends IndexedRecord> records, CodecFactory codec)
+			throws IOException {
+		this.contentType = AvroContentType.AVRO_CONTAINER;
+		this.rawMessage = AvroEncDecoder.encodeContainer(schema, records, codec);
+	}
+
+	/**
+	 * Creates a message from an already encoded payload
+	 * 
+	 * @param rawMessage
+	 * @param contentType
+	 *            the encoding of rawMessage
+	 */
+	XFabricBoundMessage(byte[] rawMessage, AvroContentType contentType) {
+		this.contentType = contentType;
+		this.rawMessage = rawMessage;
+	}
+
+	/**
+	 * @return schema of the record the message was encoded from, or null if
+	 *         it was created from an encoded payload or JSON text
+	 */
+	Schema getSchema() {
+		return schema;
+	}
+
 	/**
 	 * @return message guid provided by XFabric
 	 */
@@ -113,6 +171,59 @@ public class XFabricBoundMessage {
 		return rawMessage;
 	}
 
+	/**
+	 * @return a read-only view of the raw message, without copying it
+	 */
+	public ByteBuffer getRawMessageBuffer() {
+		return ByteBuffer.wrap(rawMessage).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the raw message to a channel, e.g. to archive it.
+	 * 
+	 * @param channel
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public long writeRawMessage(WritableByteChannel channel)
+			throws IOException {
+		ByteBuffer view = getRawMessageBuffer();
+		long written = 0;
+		while (view.hasRemaining()) {
+			written += channel.write(view);
+		}
+		return written;
+	}
+
+	/**
+	 * Returns the body to post, compressed with the outbound codec when the
+	 * raw message reaches the compression threshold. The result is kept, so
+	 * retries do not compress again.
+	 * 
+	 * @see ContentEncoding
+	 */
+	synchronized byte[] getEncodedMessage() throws IOException {
+		if (encodedMessage == null) {
+			ContentCodec codec = ContentEncoding
+					.selectOutboundCodec(rawMessage.length);
+			if (codec != null) {
+				encodedMessage = ContentEncoding.compress(rawMessage, codec);
+				contentEncoding = codec.getName();
+			} else {
+				encodedMessage = rawMessage;
+			}
+		}
+		return encodedMessage;
+	}
+
+	/**
+	 * @return Content-Encoding of the body returned by getEncodedMessage(),
+	 *         or null if it is sent uncompressed
+	 */
+	synchronized String getContentEncoding() {
+		return contentEncoding;
+	}
+
 	/**
 	 * @return the destinationId
 	 */
@@ -226,4 +337,17 @@ public class XFabricBoundMessage {
 		return XFabricMessageHelper.postMessage(fabricUrl + topic, token, this);
 	}
 
+	/**
+	 * Posts this message through a publisher's pooled connections without
+	 * blocking for the response.
+	 * 
+	 * @param publisher
+	 * @param topic
+	 * @return future completed with the message GUID
+	 */
+	public CompletableFuture<String> postAsync(XFabricPublisher publisher,
+			String topic) {
+		return publisher.postAsync(topic, this);
+	}
+
 }
@@ -22,21 +22,38 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.x.xfabric.helper;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.IndexedRecord;
 
 import com.x.xfabric.helper.avro.AvroContentType;
 import com.x.xfabric.helper.avro.AvroEncDecoder;
+import com.x.xfabric.helper.avro.AvroJsonTranscoder;
+import com.x.xfabric.helper.avro.LazyRecord;
+import com.x.xfabric.helper.avro.ReusableByteArrayOutputStream;
+import com.x.xfabric.helper.avro.SchemaFingerprint;
+import com.x.xfabric.helper.avro.SchemaProjection;
 
 /**
  * @author palavilli
@@ -45,6 +62,9 @@ import com.x.xfabric.helper.avro.AvroEncDecoder;
  */
 public class XFabricMessage {
 
+	private static final Logger log = Logger.getLogger(XFabricMessage.class
+			.getName());
+
 	/**
 	 * Constant for the Authorization header name
 	 */
@@ -53,6 +73,10 @@ public class XFabricMessage {
 	 * Name of the content type header
 	 */
 	private static String CONTENTTYPE_HDR = "Content-Type";
+	/**
+	 * Name of the content encoding header
+	 */
+	private static String CONTENTENCODING_HDR = "Content-Encoding";
 	/**
 	 * Name of the Tenant ID header sent by the fabric
 	 */
@@ -64,7 +88,7 @@ public class XFabricMessage {
 	/**
 	 * Name of the deprecated Publisher header sent by the fabric
 	 */
-	private static String PUBLISHER_DEP_HDR = "X-XC-PUBLISHER-DESTINATION-ID ";
+	private static String PUBLISHER_DEP_HDR = "X-XC-PUBLISHER-DESTINATION-ID";
 	/**
 	 * Name of the Publisher header sent by the fabric
 	 */
@@ -89,13 +113,36 @@ public class XFabricMessage {
 	 * Name of the correlation id sent by the fabric
 	 */
 	private static String CORRELATIONID_HDR = "X-XC-RESULT-CORRELATION-ID";
+	/**
+	 * Size of the chunks the request body is read in when its length is
+	 * unknown
+	 */
+	private static final int BODY_CHUNK_SIZE = 4096;
+	/**
+	 * Topics on which the fabric sends its own system messages
+	 */
+	private static final Set<String> FABRIC_SYSTEM_TOPICS = new HashSet<String>(
+			Arrays.asList("/message/failed",
+					"/xfabric/capability/endpoint/results",
+					"/xfabric/tenant/updated",
+					"/xfabric/topic/define/results",
+					"/xfabric/topic/registration/results",
+					"/system/capability/endpoint/updateFailed",
+					"/system/capability/endpoint/updated",
+					"/system/tenant/relationship/created"));
 
 	/**
 	 * Bearer Token of the message publisher
 	 */
 	private String bearerToken;
+	/**
+	 * The request this message was read from, used to look up headers on
+	 * demand
+	 */
+	private HttpServletRequest request;
 	/**
 	 * HTTP Headers sent by the fabric, Header names stored in lower case.
+	 * Built on first call to {@link #getHeaders()}.
 	 */
 	private HashMap<String, String> headers;
 	/**
@@ -126,9 +173,25 @@ public class XFabricMessage {
 	 */
 	private String correlationId;
 	/**
-	 * raw message in bytes
+	 * raw message in bytes, null until read when streaming
 	 */
 	private byte[] rawMessage;
+	/**
+	 * request body held in a pooled direct buffer, null otherwise
+	 */
+	private ByteBuffer directBody;
+	/**
+	 * pool that directBody is returned to
+	 */
+	private DirectBufferPool bufferPool;
+	/**
+	 * unread request body when streaming, null otherwise
+	 */
+	private InputStream body;
+	/**
+	 * length of the unread request body, or -1 if unknown
+	 */
+	private int bodyLength = -1;
 	/**
 	 * Avro content-type - binary or json
 	 */
@@ -157,78 +220,335 @@ public class XFabricMessage {
 	 * @throws URISyntaxException
 	 */
 	public XFabricMessage(HttpServletRequest request) throws IOException {
-		this.bearerToken = request.getHeader("Authorization");
-		this.headers = new HashMap<String, String>();
+		this(request, false);
+	}
+
+	/**
+	 * Constructor to process an incoming Avro message from XFabric
+	 * 
+	 * With streamBody set, the request body is not read up front. The message
+	 * is decoded directly from the request InputStream instead, and the body
+	 * is only buffered if {@link #getRawMessage()} is called before the
+	 * message is decoded. The body can be consumed once: after a streamed
+	 * decode, the raw message and further decodes are no longer available.
+	 * 
+	 * @param request
+	 * @param streamBody
+	 *            true to decode straight from the request InputStream
+	 * @throws IOException
+	 */
+	public XFabricMessage(HttpServletRequest request, boolean streamBody)
+			throws IOException {
+		this.request = request;
+		this.topicName = request.getPathInfo();
+
+		InputStream in = request.getInputStream();
+		int length = request.getContentLength();
+		// Compressed bodies are decompressed while they are read
+		InputStream decoded = ContentEncoding.decompress(in,
+				request.getHeader(CONTENTENCODING_HDR));
+		if (streamBody) {
+			this.body = decoded;
+			this.bodyLength = (decoded == in) ? length : -1;
+		} else if (decoded == in) {
+			rawMessage = getMessageBody(in, length);
+		} else {
+			try {
+				rawMessage = getMessageBody(decoded, -1);
+			} finally {
+				// releases the decompressor
+				decoded.close();
+			}
+		}
+		readHeaders(request);
+	}
+
+	/**
+	 * Constructor to process an incoming Avro message from XFabric, holding
+	 * the body in a direct buffer taken from pool. The body can then be
+	 * viewed with {@link #getRawMessageBuffer()} and written to NIO channels
+	 * without being copied onto the heap. Call {@link #release()} when done
+	 * with the message to return the buffer to the pool.
+	 * 
+	 * @param request
+	 * @param pool
+	 * @throws IOException
+	 */
+	public XFabricMessage(HttpServletRequest request, DirectBufferPool pool)
+			throws IOException {
+		this.request = request;
 		this.topicName = request.getPathInfo();
 
-		Enumeration<?> keys = request.getHeaderNames();
-		while (keys.hasMoreElements()) {
-			String headerName = ((String) keys.nextElement()).toLowerCase();
-			Enumeration<?> values = request.getHeaders(headerName);
-			StringBuilder headerValue = new StringBuilder();
-			boolean isFirst = true;
-			while (values.hasMoreElements()) {
-				if (!isFirst)
-					headerValue.append(", ");
-				headerValue.append((String) values.nextElement());
-				isFirst = false;
+		InputStream in = request.getInputStream();
+		InputStream decoded = ContentEncoding.decompress(in,
+				request.getHeader(CONTENTENCODING_HDR));
+		try {
+			this.directBody = readDirectBody(decoded,
+					(decoded == in) ? request.getContentLength() : -1, pool);
+			this.bufferPool = pool;
+		} finally {
+			if (decoded != in) {
+				decoded.close();
 			}
-			this.headers.put(headerName, headerValue.toString());
 		}
+		readHeaders(request);
+	}
 
-		rawMessage = getMessageBody(request);
-		this.contentType = AvroContentType.getAvroContentType(this
+	private void readHeaders(HttpServletRequest request) {
+		this.contentType = AvroContentType.getAvroContentType(request
 				.getHeader(CONTENTTYPE_HDR));
-		contentType = AvroContentType.AVRO_BINARY;
-		this.bearerToken = this.getHeader(AUTHORIZATION_HDR);
-		this.tenantId = this.getHeader(TENANTID_HDR);
-		this.publisher = (this.getHeader(PUBLISHER_HDR) != null) ? 
-				this.getHeader(PUBLISHER_HDR) : this.getHeader(PUBLISHER_DEP_HDR);
-		this.publisherPseudonym = (this.getHeader(PUBLISHER_PSEUDONYM_HDR) != null) ? 
-				this.getHeader(PUBLISHER_PSEUDONYM_HDR) : this.getHeader(PUBLISHER_PSEUDONYM_DEP_HDR);
-		this.messageGuid = this.getHeader(MESSAGEGUID_HDR);
-		this.schemaVersion = this.getHeader(SCHEMAVERSION_HDR);
-		this.schemaURI = this.getHeader(SCHEMAURI_HDR);
-		this.correlationId = this.getHeader(CORRELATIONID_HDR);
-
-		if ("/message/failed".equals(this.topicName)
-				|| "/xfabric/capability/endpoint/results"
-						.equals(this.topicName)
-				|| "/xfabric/tenant/updated".equals(this.topicName)
-				|| "/xfabric/topic/define/results".equals(this.topicName)
-				|| "/xfabric/topic/registration/results".equals(this.topicName)
-				|| "/system/capability/endpoint/updateFailed".equals(this.topicName)
-				|| "/system/capability/endpoint/updated".equals(this.topicName)
-				|| "/system/tenant/relationship/created".equals(this.topicName)
-			) {
-			this.isFabricSystemMessage = true;
+		if (contentType == null) {
+			// the fabric's default encoding
+			contentType = AvroContentType.AVRO_BINARY;
+		}
+		// Servlet header lookups are case-insensitive, so the well-known
+		// headers are read directly without building the full header map
+		this.bearerToken = request.getHeader(AUTHORIZATION_HDR);
+		this.tenantId = request.getHeader(TENANTID_HDR);
+		this.publisher = request.getHeader(PUBLISHER_HDR);
+		if (this.publisher == null) {
+			this.publisher = request.getHeader(PUBLISHER_DEP_HDR);
 		}
+		this.publisherPseudonym = request.getHeader(PUBLISHER_PSEUDONYM_HDR);
+		if (this.publisherPseudonym == null) {
+			this.publisherPseudonym = request
+					.getHeader(PUBLISHER_PSEUDONYM_DEP_HDR);
+		}
+		this.messageGuid = request.getHeader(MESSAGEGUID_HDR);
+		this.schemaVersion = request.getHeader(SCHEMAVERSION_HDR);
+		this.schemaURI = request.getHeader(SCHEMAURI_HDR);
+		this.correlationId = request.getHeader(CORRELATIONID_HDR);
+		this.isFabricSystemMessage = FABRIC_SYSTEM_TOPICS
+				.contains(this.topicName);
+	}
 
+	/**
+	 * @return all values of the named header joined with ", ", or null if
+	 *         the header is not present
+	 */
+	private static String getJoinedHeader(HttpServletRequest request,
+			String name) {
+		Enumeration<?> values = request.getHeaders(name);
+		if (values == null || !values.hasMoreElements()) {
+			return null;
+		}
+		String first = (String) values.nextElement();
+		if (!values.hasMoreElements()) {
+			return first;
+		}
+		StringBuilder headerValue = new StringBuilder(first);
+		while (values.hasMoreElements()) {
+			headerValue.append(", ");
+			headerValue.append((String) values.nextElement());
+		}
+		return headerValue.toString();
+	}
+
+	/**
+	 * Reads the request body into a direct buffer from pool, growing it as
+	 * needed when the length is unknown.
+	 * 
+	 * @return the body, with position 0 and limit at its end
+	 */
+	private static ByteBuffer readDirectBody(InputStream in, int length,
+			DirectBufferPool pool) throws IOException {
+		boolean knownLength = length >= 0;
+		ByteBuffer buffer = pool.acquire(knownLength ? length
+				: BODY_CHUNK_SIZE);
+		byte[] chunk = new byte[BODY_CHUNK_SIZE];
+		boolean done = false;
+		try {
+			while (!knownLength || buffer.hasRemaining()) {
+				int n = in.read(chunk, 0, knownLength ? Math.min(chunk.length,
+						buffer.remaining()) : chunk.length);
+				if (n < 0) {
+					if (knownLength) {
+						throw new EOFException("Expected " + length
+								+ " bytes in request body but got "
+								+ buffer.position());
+					}
+					break;
+				}
+				if (n > buffer.remaining()) {
+					ByteBuffer larger = pool.acquire(2 * buffer.position() + n);
+					buffer.flip();
+					larger.put(buffer);
+					pool.release(buffer);
+					buffer = larger;
+				}
+				buffer.put(chunk, 0, n);
+			}
+			buffer.flip();
+			done = true;
+			return buffer;
+		} finally {
+			if (!done) {
+				pool.release(buffer);
+			}
+		}
 	}
 
 	/**
 	 * extracts the avro message from the http request
 	 * 
-	 * @param request
-	 *            HttpServletRequest
+	 * @param in
+	 *            request body
+	 * @param length
+	 *            content length of the request, or -1 if unknown
 	 * @return byte[]
 	 * @throws IOException
 	 */
-	private static byte[] getMessageBody(HttpServletRequest request)
+	private static byte[] getMessageBody(InputStream in, int length)
 			throws IOException {
-		// Attempt to pre-allocate a sufficient buffer
-		int length = request.getContentLength();
-		if (length < 0) {
-			length = 4096;
+		if (length >= 0) {
+			// Read straight into a buffer of the right size
+			byte[] data = new byte[length];
+			int offset = 0;
+			while (offset < length) {
+				int n = in.read(data, offset, length - offset);
+				if (n < 0) {
+					throw new EOFException("Expected " + length
+							+ " bytes in request body but got " + offset);
+				}
+				offset += n;
+			}
+			return data;
 		}
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
-		byte[] buffer = new byte[4096];
+		ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream();
+		byte[] buffer = new byte[BODY_CHUNK_SIZE];
 		int n;
-		InputStream in = request.getInputStream();
 		while ((n = in.read(buffer)) > 0) {
-			baos.write(buffer, 0, n);
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes the message body, either from the buffered raw message or, when
+	 * streaming, directly from the request body.
+	 */
+	private IndexedRecord decodeBody(Schema writerSchema, Schema readerSchema,
+			AvroContentType type) throws IOException {
+		if (this.rawMessage != null) {
+			return AvroEncDecoder.decode(this.rawMessage, writerSchema,
+					readerSchema, type);
+		}
+		if (this.directBody != null) {
+			return AvroEncDecoder.decode(new ByteBufferInputStream(
+					this.directBody.duplicate()), writerSchema, readerSchema,
+					type);
+		}
+		InputStream in = takeBody();
+		try {
+			return AvroEncDecoder.decode(in, writerSchema, readerSchema, type);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the schema the message was written with. Single-object encoded
+	 * messages name it by fingerprint and are resolved from the local cache,
+	 * falling back to the schema URI header only on a miss; other messages
+	 * are resolved by the schema version and URI headers.
+	 * 
+	 * @param readerSchema
+	 *            schema the caller expects, or null
+	 */
+	private Schema getWriterSchema(Schema readerSchema) throws IOException {
+		if (this.contentType == AvroContentType.AVRO_SINGLE_OBJECT) {
+			long fingerprint = getSingleObjectFingerprint();
+			if (readerSchema != null
+					&& SchemaFingerprint.fingerprint64(readerSchema) == fingerprint) {
+				return readerSchema;
+			}
+			Schema writerSchema = SchemaCache.getSchemaByFingerprint(fingerprint);
+			if (writerSchema == null && schemaURI != null && schemaVersion != null) {
+				writerSchema = SchemaCache.getSchema(topicName, schemaVersion,
+						new URL(schemaURI));
+				if (writerSchema != null
+						&& SchemaFingerprint.fingerprint64(writerSchema) != fingerprint) {
+					writerSchema = null;
+				}
+			}
+			if (writerSchema == null) {
+				throw new IOException("No schema with fingerprint "
+						+ Long.toHexString(fingerprint) + " for " + topicName);
+			}
+			return writerSchema;
+		}
+		// If the incoming message is on the same version as what
+		// the reader is expecting to see, use same schema for reader
+		// and writer
+		if (readerSchema != null
+				&& this.getSchemaVersion().equals(readerSchema.getProp("version"))) {
+			return readerSchema;
+		}
+		return SchemaCache.getSchema(topicName, schemaVersion, new URL(schemaURI));
+	}
+
+	/**
+	 * Reads the writer schema fingerprint of a single-object encoded body,
+	 * leaving a streamed body readable from its start.
+	 */
+	private long getSingleObjectFingerprint() throws IOException {
+		if (this.rawMessage != null) {
+			return AvroEncDecoder.getSingleObjectFingerprint(rawMessage, 0,
+					rawMessage.length);
+		}
+		if (this.directBody != null) {
+			ByteBuffer view = this.directBody.duplicate();
+			byte[] header = new byte[Math.min(
+					AvroEncDecoder.SINGLE_OBJECT_HEADER_LENGTH, view.remaining())];
+			view.get(header);
+			return AvroEncDecoder.getSingleObjectFingerprint(header, 0,
+					header.length);
+		}
+		InputStream in = takeBody();
+		byte[] header = getMessageBody(in,
+				AvroEncDecoder.SINGLE_OBJECT_HEADER_LENGTH);
+		this.body = new SequenceInputStream(new ByteArrayInputStream(header),
+				in);
+		return AvroEncDecoder.getSingleObjectFingerprint(header, 0,
+				header.length);
+	}
+
+	/**
+	 * Transcodes a JSON body to binary, so it can take the binary paths
+	 */
+	private ReusableByteArrayOutputStream transcodeJsonBody(Schema writerSchema)
+			throws IOException {
+		ReusableByteArrayOutputStream binary = new ReusableByteArrayOutputStream();
+		InputStream in = openBody();
+		try {
+			AvroJsonTranscoder.jsonToBinary(in, writerSchema, binary);
+		} finally {
+			in.close();
+		}
+		return binary;
+	}
+
+	/**
+	 * @return stream over the whole body, wherever it is held
+	 */
+	private InputStream openBody() {
+		if (this.rawMessage != null) {
+			return new ByteArrayInputStream(this.rawMessage);
 		}
-		return baos.toByteArray();
+		if (this.directBody != null) {
+			return new ByteBufferInputStream(this.directBody.duplicate());
+		}
+		return takeBody();
+	}
+
+	private InputStream takeBody() {
+		if (this.body == null) {
+			throw new IllegalStateException(
+					"The message body has already been consumed");
+		}
+		InputStream in = this.body;
+		this.body = null;
+		return in;
 	}
 
 	/**
@@ -239,23 +559,44 @@ public class XFabricMessage {
 	}
 
 	/**
+	 * The map is built from the request on first call, so this should be
+	 * called while the request is still being processed.
+	 * 
 	 * @return headers Http Headers from XFabric request with key names in lower
 	 *         case.
 	 */
 	public HashMap<String, String> getHeaders() {
+		if (headers == null) {
+			HashMap<String, String> all = new HashMap<String, String>();
+			Enumeration<?> keys = request.getHeaderNames();
+			while (keys.hasMoreElements()) {
+				String headerName = (String) keys.nextElement();
+				all.put(headerName.toLowerCase(),
+						getJoinedHeader(request, headerName));
+			}
+			headers = all;
+		}
 		return headers;
 	}
 
 	/**
+	 * Headers other than the well-known ones, which have their own getters,
+	 * are looked up in the request until {@link #getHeaders()} has been
+	 * called. So this may only be used while the request is still being
+	 * processed; to read headers later, e.g. on a worker thread, call
+	 * getHeaders() before the servlet returns to keep a copy of them.
+	 * 
 	 * @param name
 	 *            Http Header Name (case-insensitive)
 	 * @return header value
 	 */
 	public String getHeader(String name) {
-		if (name != null) {
+		if (name == null) {
+			return null;
+		} else if (headers != null) {
 			return headers.get(name.toLowerCase());
 		} else {
-			return null;
+			return getJoinedHeader(request, name);
 		}
 	}
 
@@ -316,90 +657,303 @@ public class XFabricMessage {
 	}
 
 	/**
+	 * When streaming, the first call reads the remaining request body.
+	 * 
 	 * @return raw message in bytes
+	 * @throws UncheckedIOException
+	 *             if the request body cannot be read
+	 * @throws IllegalStateException
+	 *             if the body has already been consumed by a streamed decode
 	 */
 	public byte[] getRawMessage() {
+		if (rawMessage == null && directBody != null) {
+			byte[] copy = new byte[directBody.remaining()];
+			directBody.duplicate().get(copy);
+			rawMessage = copy;
+		} else if (rawMessage == null) {
+			try {
+				rawMessage = getMessageBody(takeBody(), bodyLength);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
 		return rawMessage;
 	}
 
+	/**
+	 * Gives a read-only view of the raw message without copying it. When the
+	 * body is held in a direct buffer, so is the view, and it must not be used
+	 * after {@link #release()}.
+	 * 
+	 * @return the raw message, from position 0 to its length
+	 * @throws UncheckedIOException
+	 *             if the request body cannot be read
+	 * @throws IllegalStateException
+	 *             if the body has already been consumed
+	 */
+	public ByteBuffer getRawMessageBuffer() {
+		if (directBody != null) {
+			return directBody.asReadOnlyBuffer();
+		}
+		return ByteBuffer.wrap(getRawMessage()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param offset
+	 *            start of the slice in the raw message
+	 * @param length
+	 *            length of the slice
+	 * @return a read-only view of part of the raw message, without copying
+	 * @throws IndexOutOfBoundsException
+	 *             if the slice is not within the raw message
+	 */
+	public ByteBuffer getRawMessageSlice(int offset, int length) {
+		ByteBuffer view = getRawMessageBuffer();
+		if (offset < 0 || length < 0 || length > view.remaining() - offset) {
+			throw new IndexOutOfBoundsException("Slice " + offset + "+"
+					+ length + " outside message of " + view.remaining());
+		}
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	/**
+	 * Writes the raw message to a channel, e.g. a FileChannel to archive it or
+	 * a SocketChannel to forward it. A body held in a direct buffer is written
+	 * without being copied.
+	 * 
+	 * @param channel
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public long writeRawMessage(WritableByteChannel channel)
+			throws IOException {
+		ByteBuffer view = getRawMessageBuffer();
+		long written = 0;
+		while (view.hasRemaining()) {
+			written += channel.write(view);
+		}
+		return written;
+	}
+
+	/**
+	 * Returns a body held in a pooled direct buffer to its pool. The raw
+	 * message is no longer available afterwards unless it was copied with
+	 * getRawMessage() before. Does nothing for other messages.
+	 */
+	public void release() {
+		if (directBody != null) {
+			ByteBuffer buffer = directBody;
+			directBody = null;
+			bufferPool.release(buffer);
+		}
+	}
+
 	/**
 	 * @return message record based on the given schema
 	 * @throws IOException
 	 */
 	public IndexedRecord getMessage(Schema readerSchema) throws IOException {
-		Schema writerSchema = null;
-		// If the incoming message is on the same version as what
-		// the reader is expecting to see, use same schema for reader
-		// and writer
-		if (this.getSchemaVersion().equals(readerSchema.getProp("version"))) {
-			writerSchema = readerSchema;
-		} else {
-			writerSchema = SchemaCache.getSchema(topicName, schemaVersion,
-					new URL(schemaURI));
+		if (this.contentType == AvroContentType.AVRO_CONTAINER) {
+			throw new IOException(
+					"Batch messages must be read with getMessages()");
 		}
+		Schema writerSchema = getWriterSchema(readerSchema);
 
-		if (this.contentType == AvroContentType.AVRO_BINARY) {
-			return AvroEncDecoder.decode(this.rawMessage, writerSchema,
-					readerSchema, AvroContentType.AVRO_BINARY);
+		if (this.contentType == AvroContentType.AVRO_BINARY
+				|| this.contentType == AvroContentType.AVRO_SINGLE_OBJECT) {
+			return decodeBody(writerSchema, readerSchema, this.contentType);
 		} else if (this.contentType == AvroContentType.AVRO_JSON) {
-			return AvroEncDecoder.decode(this.rawMessage, writerSchema,
-					readerSchema, AvroContentType.AVRO_JSON);
+			return decodeBody(writerSchema, readerSchema,
+					AvroContentType.AVRO_JSON);
 		} else {
-			System.out.println("Unknown content-type:"
+			log.warning("Unknown content-type: "
 					+ this.contentType.getContentType());
 			return null;
 		}
 	}
 
+	/**
+	 * Gives a read-only view of the message that decodes each field only when
+	 * it is read, for handlers that look at a few fields and then forward the
+	 * raw message. Fields are those of the writer schema.
+	 * 
+	 * @return lazy view over the raw message
+	 * @throws IOException
+	 *             if the writer schema cannot be resolved, or the message is a
+	 *             batch
+	 * @see LazyRecord
+	 */
+	public LazyRecord getLazyMessage() throws IOException {
+		if (this.contentType == AvroContentType.AVRO_CONTAINER) {
+			throw new IOException(
+					"Batch messages must be read with getMessages()");
+		}
+		Schema writerSchema = getWriterSchema(null);
+		if (this.contentType == AvroContentType.AVRO_JSON) {
+			ReusableByteArrayOutputStream binary = transcodeJsonBody(writerSchema);
+			return new LazyRecord(writerSchema, binary.getBuffer(), 0,
+					binary.size());
+		}
+		int header = (this.contentType == AvroContentType.AVRO_SINGLE_OBJECT) ? AvroEncDecoder.SINGLE_OBJECT_HEADER_LENGTH
+				: 0;
+		byte[] data = getRawMessage();
+		return new LazyRecord(writerSchema, data, header, data.length - header);
+	}
+
+	/**
+	 * Decodes only the given fields of the message, skipping the rest of the
+	 * payload. The reader schema is a projection of the writer schema onto
+	 * the field paths, e.g. "sku" or "price.amount".
+	 * 
+	 * @param fieldPaths
+	 *            dot separated paths of the fields to decode
+	 * @return record of the projected schema
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             if a path does not name a field of the writer schema
+	 * @see SchemaProjection
+	 */
+	public GenericRecord getMessageFields(String... fieldPaths)
+			throws IOException {
+		if (this.contentType == AvroContentType.AVRO_CONTAINER) {
+			throw new IOException(
+					"Batch messages must be read with getMessages()");
+		}
+		SchemaProjection projection = SchemaProjection.of(
+				getWriterSchema(null), fieldPaths);
+		if (this.contentType == AvroContentType.AVRO_JSON) {
+			ReusableByteArrayOutputStream binary = transcodeJsonBody(projection
+					.getWriterSchema());
+			return projection.decode(binary.getBuffer(), 0, binary.size());
+		}
+		int header = (this.contentType == AvroContentType.AVRO_SINGLE_OBJECT) ? AvroEncDecoder.SINGLE_OBJECT_HEADER_LENGTH
+				: 0;
+		if (this.rawMessage != null) {
+			return projection.decode(rawMessage, header, rawMessage.length
+					- header);
+		}
+		InputStream in = openBody();
+		try {
+			if (header > 0) {
+				AvroEncDecoder.readSingleObjectHeader(in);
+			}
+			return projection.decode(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the records of a batch message, sent as an Avro object container.
+	 * The records are decoded in place from the raw message as the reader is
+	 * iterated; the reader can also seek to a block position, or with
+	 * sync(position) to the first block after a position. The writer schema
+	 * is carried in the container itself.
+	 * 
+	 * @param readerSchema
+	 *            expected schema for the records, or null for the writer
+	 *            schema
+	 * @return reader over the records; close it when done
+	 * @throws IOException
+	 *             if the message is not a batch or its header is invalid
+	 */
+	public <T extends IndexedRecord> DataFileReader<T> getMessages(
+			Schema readerSchema) throws IOException {
+		if (this.contentType != AvroContentType.AVRO_CONTAINER) {
+			throw new IOException("Not a batch message: "
+					+ getContentType());
+		}
+		byte[] data = getRawMessage();
+		return AvroEncDecoder.<T> openContainer(data, 0, data.length,
+				readerSchema);
+	}
+
 	/**
 	 * @return message in Json String based on the given schema
 	 * @throws IOException
+	 *             if the message is a batch, which must be read with
+	 *             getMessages()
 	 */
 	public String getMessageAsJsonString(Schema readerSchema)
 			throws IOException {
-		Schema writerSchema = null;
-		// If the incoming message is on the same version as what
-		// the reader is expecting to see, use same schema for reader
-		// and writer
-		if (this.getSchemaVersion().equals(readerSchema.getProp("version"))) {
-			writerSchema = readerSchema;
-		} else {
-			writerSchema = SchemaCache.getSchema(topicName, schemaVersion,
-					new URL(schemaURI));
-		}
-		if (this.contentType == AvroContentType.AVRO_BINARY) {
-			IndexedRecord record = AvroEncDecoder.decode(this.rawMessage,
-					writerSchema, readerSchema, AvroContentType.AVRO_BINARY);
-			return new String(AvroEncDecoder.encode(record,
-					AvroContentType.AVRO_JSON));
-		} else if (this.contentType == AvroContentType.AVRO_JSON) {
-			IndexedRecord record = AvroEncDecoder.decode(this.rawMessage,
-					writerSchema, readerSchema, AvroContentType.AVRO_JSON);
-			return new String(AvroEncDecoder.encode(record,
-					AvroContentType.AVRO_JSON));
-		} else {
-			System.out.println("Unknown content-type:"
-					+ this.contentType.getContentType());
-			return null;
+		if (this.contentType == AvroContentType.AVRO_CONTAINER) {
+			throw new IOException(
+					"Batch messages must be read with getMessages()");
 		}
+		ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream();
+		writeMessageAsJson(readerSchema, out);
+		return new String(out.getBuffer(), 0, out.size(), "UTF-8");
 	}
 
 	/**
 	 * @return message in Json String without conforming to any reader scheme
 	 *         (uses writer schema)
 	 * @throws IOException
+	 *             if the message is a batch, which must be read with
+	 *             getMessages()
 	 */
 	public String getMessageAsJsonString() throws IOException {
 
-		if (this.contentType == AvroContentType.AVRO_BINARY) {
-			Schema writerSchema = SchemaCache.getSchema(topicName,
-					schemaVersion, new URL(schemaURI));
-			IndexedRecord record = AvroEncDecoder.decode(this.rawMessage,
-					writerSchema, writerSchema, AvroContentType.AVRO_BINARY);
-			return new String(AvroEncDecoder.encode(record,
-					AvroContentType.AVRO_JSON));
+		if (this.contentType == AvroContentType.AVRO_CONTAINER) {
+			throw new IOException(
+					"Batch messages must be read with getMessages()");
+		} else if (this.contentType == AvroContentType.AVRO_BINARY
+				|| this.contentType == AvroContentType.AVRO_SINGLE_OBJECT) {
+			ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream();
+			writeMessageAsJson(null, out);
+			return new String(out.getBuffer(), 0, out.size(), "UTF-8");
 		} else {
-			return new String(this.rawMessage, "UTF-8");
+			return new String(getRawMessage(), "UTF-8");
+		}
+	}
+
+	/**
+	 * Writes the message as UTF-8 JSON straight to a stream, transcoding it
+	 * without decoding it into a record first. JSON messages are rewritten
+	 * with the reader schema by way of binary.
+	 * 
+	 * @param readerSchema
+	 *            schema to write the JSON with, or null for the writer schema
+	 * @param out
+	 *            receives the JSON; it is flushed but not closed
+	 * @throws IOException
+	 *             if the message is a batch, or cannot be transcoded
+	 * @see AvroJsonTranscoder
+	 */
+	public void writeMessageAsJson(Schema readerSchema, OutputStream out)
+			throws IOException {
+		if (this.contentType == AvroContentType.AVRO_CONTAINER) {
+			throw new IOException("Cannot transcode " + getContentType()
+					+ " to JSON");
+		}
+		Schema writerSchema = getWriterSchema(readerSchema);
+		if (readerSchema == null) {
+			readerSchema = writerSchema;
+		}
+		if (this.contentType == AvroContentType.AVRO_JSON) {
+			// Through binary, which resolves the reader schema in a stream
+			ReusableByteArrayOutputStream binary = transcodeJsonBody(writerSchema);
+			AvroJsonTranscoder.binaryToJson(binary.getBuffer(), 0,
+					binary.size(), writerSchema, readerSchema, out);
+			return;
+		}
+		int header = (this.contentType == AvroContentType.AVRO_SINGLE_OBJECT) ? AvroEncDecoder.SINGLE_OBJECT_HEADER_LENGTH
+				: 0;
+		if (this.rawMessage != null) {
+			AvroJsonTranscoder.binaryToJson(rawMessage, header,
+					rawMessage.length - header, writerSchema, readerSchema, out);
+			return;
+		}
+		InputStream in = openBody();
+		try {
+			if (header > 0) {
+				AvroEncDecoder.readSingleObjectHeader(in);
+			}
+			AvroJsonTranscoder.binaryToJson(in, writerSchema, readerSchema, out);
+		} finally {
+			in.close();
 		}
 	}
 
@@ -0,0 +1,409 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Detects redelivered messages by their X-XC-MESSAGE-GUID.
+ * 
+ * GUIDs are kept as two longs (parsed from the hex digits of a UUID style
+ * GUID, or hashed otherwise) in open-addressed tables, on the heap or
+ * off-heap. Memory stays flat: the filter remembers the GUIDs seen in the
+ * current and the previous generation, and a new generation is started once
+ * the current one holds windowSize GUIDs or is windowMillis old, dropping the
+ * oldest generation. So at least the last windowSize GUIDs, and all GUIDs of
+ * the last windowMillis, are remembered. Each generation takes 32 bytes per
+ * GUID of the window.
+ * 
+ * Lookups and inserts use compare-and-set on the table slots and take no
+ * locks. Use {@link #isDuplicate(HttpServletRequest)} to reject a
+ * redelivered message before its body is read.
+ */
+public class XFabricMessageDeduplicator {
+
+	/** Name of the Message GUID header sent by the fabric */
+	private static final String MESSAGEGUID_HDR = "X-XC-MESSAGE-GUID";
+	/** Stand-in for a zero half of a key, since zero marks an empty slot */
+	private static final long ZERO_KEY = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Table slots holding the two halves of each key
+	 */
+	interface Slots {
+		long getHi(int slot);
+
+		long getLo(int slot);
+
+		boolean claim(int slot, long hi);
+
+		void setLo(int slot, long lo);
+	}
+
+	static final class HeapSlots implements Slots {
+
+		private final AtomicLongArray keys;
+
+		HeapSlots(int capacity) {
+			keys = new AtomicLongArray(capacity * 2);
+		}
+
+		public long getHi(int slot) {
+			return keys.get(slot << 1);
+		}
+
+		public long getLo(int slot) {
+			return keys.get((slot << 1) + 1);
+		}
+
+		public boolean claim(int slot, long hi) {
+			return keys.compareAndSet(slot << 1, 0, hi);
+		}
+
+		public void setLo(int slot, long lo) {
+			keys.set((slot << 1) + 1, lo);
+		}
+	}
+
+	static final class DirectSlots implements Slots {
+
+		private static final VarHandle LONGS = MethodHandles
+				.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+		private final ByteBuffer keys;
+
+		DirectSlots(int capacity) {
+			keys = ByteBuffer.allocateDirect(capacity * 16);
+		}
+
+		public long getHi(int slot) {
+			return (long) LONGS.getVolatile(keys, slot << 4);
+		}
+
+		public long getLo(int slot) {
+			return (long) LONGS.getVolatile(keys, (slot << 4) + 8);
+		}
+
+		public boolean claim(int slot, long hi) {
+			return LONGS.compareAndSet(keys, slot << 4, 0L, hi);
+		}
+
+		public void setLo(int slot, long lo) {
+			LONGS.setVolatile(keys, (slot << 4) + 8, lo);
+		}
+	}
+
+	static final class Generation {
+
+		final Slots slots;
+		final int mask;
+		final AtomicInteger count = new AtomicInteger();
+		final long startedAt = System.nanoTime();
+
+		Generation(int capacity, boolean offHeap) {
+			this.slots = offHeap ? new DirectSlots(capacity) : new HeapSlots(
+					capacity);
+			this.mask = capacity - 1;
+		}
+
+		boolean contains(long hi, long lo) {
+			int slot = index(hi, lo) & mask;
+			for (int probes = 0; probes <= mask; probes++) {
+				long h = slots.getHi(slot);
+				if (h == 0) {
+					return false;
+				}
+				if (h == hi && awaitLo(slot) == lo) {
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return false;
+		}
+
+		/**
+		 * @return 1 if inserted, 0 if already present, -1 if the table is full
+		 */
+		int insert(long hi, long lo) {
+			int slot = index(hi, lo) & mask;
+			for (int probes = 0; probes <= mask; probes++) {
+				long h = slots.getHi(slot);
+				if (h == 0) {
+					if (slots.claim(slot, hi)) {
+						slots.setLo(slot, lo);
+						count.incrementAndGet();
+						return 1;
+					}
+					h = slots.getHi(slot);
+				}
+				if (h == hi && awaitLo(slot) == lo) {
+					return 0;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * A slot is claimed by setting its high half; wait for the thread
+		 * that claimed it to fill in the low half.
+		 */
+		private long awaitLo(int slot) {
+			long lo;
+			while ((lo = slots.getLo(slot)) == 0) {
+				Thread.onSpinWait();
+			}
+			return lo;
+		}
+
+		private static int index(long hi, long lo) {
+			long h = (hi ^ (lo * 0xC2B2AE3D27D4EB4FL)) * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	static final class Generations {
+
+		final Generation current;
+		final Generation previous;
+
+		Generations(Generation current, Generation previous) {
+			this.current = current;
+			this.previous = previous;
+		}
+	}
+
+	/** Largest window of an on-heap filter */
+	public static final int MAX_WINDOW_SIZE = 1 << 26;
+	/**
+	 * Largest window of an off-heap filter, whose tables of 16 bytes per slot
+	 * must stay addressable by an int
+	 */
+	public static final int MAX_OFF_HEAP_WINDOW_SIZE = 1 << 25;
+
+	private final int windowSize;
+	private final long windowNanos;
+	private final int capacity;
+	private final boolean offHeap;
+	private final AtomicReference<Generations> generations;
+	private final AtomicBoolean rotating = new AtomicBoolean();
+
+	/**
+	 * On-heap filter remembering at least the last windowSize GUIDs
+	 * 
+	 * @param windowSize
+	 */
+	public XFabricMessageDeduplicator(int windowSize) {
+		this(windowSize, 0, false);
+	}
+
+	/**
+	 * @param windowSize
+	 *            minimum number of recent GUIDs to remember, at most
+	 *            MAX_WINDOW_SIZE, or MAX_OFF_HEAP_WINDOW_SIZE off heap
+	 * @param windowMillis
+	 *            minimum time to remember a GUID for, 0 for no time bound
+	 * @param offHeap
+	 *            true to keep the tables in direct memory
+	 */
+	public XFabricMessageDeduplicator(int windowSize, long windowMillis,
+			boolean offHeap) {
+		if (windowSize <= 0
+				|| windowSize > (offHeap ? MAX_OFF_HEAP_WINDOW_SIZE
+						: MAX_WINDOW_SIZE)) {
+			throw new IllegalArgumentException("windowSize out of range");
+		}
+		this.windowSize = windowSize;
+		this.windowNanos = windowMillis * 1000000L;
+		// keep the load factor of a full generation at or below one half
+		this.capacity = Integer.highestOneBit(windowSize * 2 - 1) << 1;
+		this.offHeap = offHeap;
+		this.generations = new AtomicReference<Generations>(new Generations(
+				new Generation(capacity, offHeap), null));
+	}
+
+	/**
+	 * Records the GUID of the request's message
+	 * 
+	 * @param request
+	 * @return true if a message with the same GUID was already seen, false if
+	 *         it is new or has no GUID
+	 */
+	public boolean isDuplicate(HttpServletRequest request) {
+		return isDuplicate(request.getHeader(MESSAGEGUID_HDR));
+	}
+
+	/**
+	 * Records the GUID of a message
+	 * 
+	 * @param message
+	 * @return true if a message with the same GUID was already seen, false if
+	 *         it is new or has no GUID
+	 */
+	public boolean isDuplicate(XFabricMessage message) {
+		return isDuplicate(message.getMessageGuid());
+	}
+
+	/**
+	 * Records a message GUID
+	 * 
+	 * @param messageGuid
+	 * @return true if the GUID was already seen, false if it is new or null
+	 */
+	public boolean isDuplicate(String messageGuid) {
+		if (messageGuid == null) {
+			return false;
+		}
+		long[] key = parseGuid(messageGuid);
+		return isDuplicate(key[0], key[1]);
+	}
+
+	/**
+	 * Records a message GUID given as two longs
+	 * 
+	 * @param hi
+	 * @param lo
+	 * @return true if the GUID was already seen
+	 */
+	public boolean isDuplicate(long hi, long lo) {
+		if (hi == 0) {
+			hi = ZERO_KEY;
+		}
+		if (lo == 0) {
+			lo = ZERO_KEY;
+		}
+		while (true) {
+			Generations gens = rotateIfNeeded();
+			if (gens.previous != null && gens.previous.contains(hi, lo)) {
+				return true;
+			}
+			int result = gens.current.insert(hi, lo);
+			if (result >= 0) {
+				return result == 0;
+			}
+			// the table filled up under concurrent inserts; start a new one
+			rotate(gens, true);
+		}
+	}
+
+	private Generations rotateIfNeeded() {
+		Generations gens = generations.get();
+		Generation current = gens.current;
+		if (current.count.get() >= windowSize
+				|| (windowNanos > 0 && System.nanoTime() - current.startedAt >= windowNanos)) {
+			// the table has room for twice the window, so the other threads
+			// go on inserting while one of them builds the next generation
+			return rotate(gens, false);
+		}
+		return gens;
+	}
+
+	/**
+	 * Replaces gens by a new generation. Only the thread holding the rotating
+	 * flag allocates it.
+	 * 
+	 * @param gens
+	 *            generations seen by the caller
+	 * @param wait
+	 *            true to wait for the new generation if another thread is
+	 *            building it, false to go on with gens
+	 * @return the generations to use
+	 */
+	private Generations rotate(Generations gens, boolean wait) {
+		while (true) {
+			Generations now = generations.get();
+			if (now != gens) {
+				return now;
+			}
+			if (rotating.compareAndSet(false, true)) {
+				try {
+					if (generations.get() == gens) {
+						Generations next = new Generations(new Generation(
+								capacity, offHeap), gens.current);
+						generations.set(next);
+						return next;
+					}
+				} finally {
+					rotating.set(false);
+				}
+				continue;
+			}
+			if (!wait) {
+				return gens;
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Converts a GUID to two longs. UUID style GUIDs (32 hex digits, dashes
+	 * ignored) map exactly; anything else is hashed.
+	 */
+	static long[] parseGuid(String guid) {
+		long hi = 0;
+		long lo = 0;
+		int digits = 0;
+		for (int i = 0; i < guid.length(); i++) {
+			char c = guid.charAt(i);
+			if (c == '-') {
+				continue;
+			}
+			int d = Character.digit(c, 16);
+			if (d < 0 || digits == 32) {
+				return hashGuid(guid);
+			}
+			if (digits < 16) {
+				hi = (hi << 4) | d;
+			} else {
+				lo = (lo << 4) | d;
+			}
+			digits++;
+		}
+		if (digits != 32) {
+			return hashGuid(guid);
+		}
+		return new long[] { hi, lo };
+	}
+
+	private static long[] hashGuid(String guid) {
+		// two independent 64 bit hashes: FNV-1a and a multiplicative one
+		long h1 = 0xCBF29CE484222325L;
+		long h2 = 0x84222325CBF29CE4L;
+		for (int i = 0; i < guid.length(); i++) {
+			char c = guid.charAt(i);
+			h1 = (h1 ^ c) * 0x100000001B3L;
+			h2 = (h2 + c) * 0xC6A4A7935BD1E995L;
+			h2 ^= h2 >>> 47;
+		}
+		return new long[] { h1, h2 };
+	}
+}
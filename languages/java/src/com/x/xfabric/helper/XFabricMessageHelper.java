@@ -22,14 +22,15 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package com.x.xfabric.helper;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -37,61 +38,68 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import com.x.xfabric.helper.metrics.Metrics;
 
 
 public class XFabricMessageHelper {
 
-	private static final String USERAGENT_TEXT = "XFabricUtil-0.11.0";
-	private static final int HTTP_CONNECTION_TIMEOUT = 3000;
-	private static final int HTTP_READ_TIMEOUT = 7000;
+	private static final Logger log = Logger.getLogger(XFabricMessageHelper.class.getName());
+
+	static final String USERAGENT_TEXT = "XFabricUtil-0.11.0";
+	static final int HTTP_CONNECTION_TIMEOUT = 3000;
+	static final int HTTP_READ_TIMEOUT = 7000;
 	//XXX: SSL check must be enabled for sandbox & production environments
 	private static final boolean DISABLE_SSL_CERT_CHECK = false;
 
 	/**
 	 * User agent header
 	 */
-	private static String USERAGENT_HDR = "User-Agent";
+	static final String USERAGENT_HDR = "User-Agent";
 	/**
 	 * Constant for the Authorization header name
 	 */
-	private static String AUTHORIZATION_HDR = "Authorization";
+	static final String AUTHORIZATION_HDR = "Authorization";
 	/**
 	 * Name of the content type header
 	 */
-	private static String CONTENTTYPE_HDR = "Content-Type";
+	static final String CONTENTTYPE_HDR = "Content-Type";
+	/**
+	 * Name of the content encoding header, set when the body is compressed
+	 */
+	static final String CONTENTENCODING_HDR = "Content-Encoding";
 	/**
 	 * Name of the optional destination header to limit the message
 	 * recipient to a specific capability.
 	 */
-	private static String DESTINATION_HDR = "X-XC-DESTINATION-ID";
+	static final String DESTINATION_HDR = "X-XC-DESTINATION-ID";
 	/**
 	 * The message guid that is sent as a response header by the fabric
 	 */
-	private static final String MESSAGE_GUID_HEADER = "X-XC-MESSAGE-GUID";
+	static final String MESSAGE_GUID_HEADER = "X-XC-MESSAGE-GUID";
 	/**
 	 * Name of the optional Message GUID continuation header sent
 	 * to relate this message with a previously sent one
 	 */
-	private static String MESSAGEGUID_CONTINUATION_HDR = "X-XC-MESSAGE-GUID-CONTINUATION";
+	static final String MESSAGEGUID_CONTINUATION_HDR = "X-XC-MESSAGE-GUID-CONTINUATION";
 	/**
 	 * Name of the optional idempotency header sent to the fabric to instruct
 	 * it to not process the message if this id has already been processed successfully
 	 */
-	private static String MESSAGE_IDEMPOTENCY_HDR = "X-XC-IDEMPOTENCY-ID";
+	static final String MESSAGE_IDEMPOTENCY_HDR = "X-XC-IDEMPOTENCY-ID";
 	/**
 	 * Name of the schema version header to be sent to the fabric
 	 */
-	private static String SCHEMAVERSION_HDR = "X-XC-SCHEMA-VERSION";
+	static final String SCHEMAVERSION_HDR = "X-XC-SCHEMA-VERSION";
 	/**
 	 * Name of the schema URI header that can be sent to
 	 * or received from the fabric
 	 */
-	private static String SCHEMAURI_HDR = "X-XC-SCHEMA-URI";
+	static final String SCHEMAURI_HDR = "X-XC-SCHEMA-URI";
 
 	/**
 	 * Name of the correlation id that can be sent to or received from the fabric
 	 */
-	private static String CORRELATIONID_HDR = "X-XC-RESULT-CORRELATION-ID";
+	static final String CORRELATIONID_HDR = "X-XC-RESULT-CORRELATION-ID";
 
 	/**
 	 * @deprecated To be given package visibility. Use XFabricBoundMessage.post() instead
@@ -106,7 +114,8 @@ public class XFabricMessageHelper {
 	 */
 	public static String postMessage(String topicUrl, String token, XFabricBoundMessage msg)
 	throws IOException, NoSuchAlgorithmException, KeyManagementException, XFabricHttpException {
-		String responseString = "";
+		long start = -1;
+		int status = -1;
 		try {
 			if(DISABLE_SSL_CERT_CHECK){
 				// Create a trust manager that does not validate certificate chains
@@ -161,19 +170,29 @@ public class XFabricMessageHelper {
 				connection.setRequestProperty(CORRELATIONID_HDR, msg.getCorrelationId());
 			}
 
-			// write the binary data
-			connection.getOutputStream().write(msg.getRawMessage());
+			// compress the body if it is big enough
+			byte[] body = msg.getEncodedMessage();
+			if(msg.getContentEncoding() != null) {
+				connection.setRequestProperty(CONTENTENCODING_HDR, msg.getContentEncoding());
+			}
 
-			if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-				String inputLine;
-				BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
-				while ((inputLine = reader.readLine()) != null) {
-					responseString += inputLine;
+			// write the binary data
+			start = System.nanoTime();
+			connection.getOutputStream().write(body);
+
+			status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_OK) {
+				// The body is not used, but must be read to the end for the
+				// connection to be reused by the keep-alive cache
+				InputStream in = connection.getInputStream();
+				byte[] buffer = new byte[512];
+				while (in.read(buffer) >= 0) {
+					// discard
 				}
-				reader.close();
+				in.close();
 				return connection.getHeaderField(MESSAGE_GUID_HEADER);
 			}
-			throw new XFabricHttpException(connection.getResponseMessage(), connection.getResponseCode());
+			throw new XFabricHttpException(connection.getResponseMessage(), status);
 
 		} catch (MalformedURLException e) {
 			// ...
@@ -182,8 +201,12 @@ public class XFabricMessageHelper {
 			// ...
 			throw e;
 		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+			log.log(Level.SEVERE, "TLS is not available", e);
 			throw e;
+		} finally {
+			if (start >= 0) {
+				Metrics.getRecorder().recordPublish(System.nanoTime() - start, status);
+			}
 		}
 
 	}
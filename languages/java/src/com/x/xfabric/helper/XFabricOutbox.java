@@ -0,0 +1,599 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.x.xfabric.helper.avro.AvroContentType;
+
+/**
+ * Durable outbox for at-least-once delivery of messages to the fabric.
+ * 
+ * Messages are appended, payload and headers together, to a log of fixed size
+ * segment files that are memory-mapped, so an append is a memory copy. The log
+ * is forced to disk by a background thread every group commit interval, which
+ * makes all appends of that interval durable with a single sync; callers that
+ * need to wait for durability use {@link #awaitDurable(long)}.
+ * 
+ * A sender thread drains the log in order through an
+ * {@link XFabricRetryingPublisher}. The position up to which the log has
+ * been delivered is saved in a checkpoint file, so after a restart sending
+ * resumes where it stopped. Messages sent after the last checkpoint may be
+ * sent again; every message gets an idempotency id when appended so that the
+ * fabric can discard such duplicates. Fully delivered segments are deleted.
+ * 
+ * Record layout: int body length, int CRC32 of the body, then the body: topic,
+ * content type, destination id, schema version, schema URI, idempotency id,
+ * correlation id and continuation GUID as length-prefixed UTF-8 strings (-1
+ * for null), followed by the length-prefixed payload. A zero length marks the
+ * end of the data in a segment.
+ */
+public class XFabricOutbox {
+
+	private static final Logger log = Logger.getLogger(XFabricOutbox.class
+			.getName());
+
+	/** Default size of a log segment */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/** Default group commit interval, in milliseconds */
+	public static final long DEFAULT_GROUP_COMMIT_MILLIS = 5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "outbox-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int RECORD_HEADER_SIZE = 8;
+	/** Pause before resending after a retryable failure */
+	private static final long RESEND_DELAY_MILLIS = 1000;
+
+	static final class Segment {
+
+		final long number;
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(long number, File file, int size) throws IOException {
+			this.number = number;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final long groupCommitMillis;
+	private final XFabricRetryingPublisher publisher;
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	private final CRC32 appendCrc = new CRC32();
+	/** used by the sender thread only */
+	private final CRC32 sendCrc = new CRC32();
+	private final Object checkpointLock = new Object();
+	private final Thread flusher;
+	private final Thread sender;
+
+	/** segment being appended to, guarded by this */
+	private Segment writeSegment;
+	/** position after the last appended record */
+	private volatile long writePosition;
+	/** position up to which the log is known to be on disk */
+	private volatile long durablePosition;
+	/** position up to which the log has been delivered */
+	private volatile long deliveredPosition;
+	/** delivered position last saved in the checkpoint */
+	private long checkpointedPosition;
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens the outbox with default segment size and group commit interval.
+	 * 
+	 * @param directory
+	 *            directory holding the log, created if needed
+	 * @param publisher
+	 *            publisher used to deliver the messages
+	 * @throws IOException
+	 */
+	public XFabricOutbox(File directory, XFabricRetryingPublisher publisher)
+			throws IOException {
+		this(directory, publisher, DEFAULT_SEGMENT_SIZE,
+				DEFAULT_GROUP_COMMIT_MILLIS);
+	}
+
+	/**
+	 * Opens the outbox, recovering any undelivered messages left by a previous
+	 * run, and starts delivering them.
+	 * 
+	 * @param directory
+	 *            directory holding the log, created if needed
+	 * @param publisher
+	 *            publisher used to deliver the messages
+	 * @param segmentSize
+	 *            size of each log segment file, bounds the record size
+	 * @param groupCommitMillis
+	 *            interval between syncs of the log
+	 * @throws IOException
+	 */
+	public XFabricOutbox(File directory, XFabricRetryingPublisher publisher,
+			int segmentSize, long groupCommitMillis) throws IOException {
+		if (segmentSize <= RECORD_HEADER_SIZE || groupCommitMillis <= 0) {
+			throw new IllegalArgumentException(
+					"segmentSize and groupCommitMillis must be positive");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create outbox directory " + directory);
+		}
+		this.directory = directory;
+		this.publisher = publisher;
+		this.segmentSize = segmentSize;
+		this.groupCommitMillis = groupCommitMillis;
+
+		recover();
+
+		this.flusher = new Thread(new Runnable() {
+			public void run() {
+				flushLoop();
+			}
+		}, "xfabric-outbox-flusher");
+		this.flusher.setDaemon(true);
+		this.sender = new Thread(new Runnable() {
+			public void run() {
+				sendLoop();
+			}
+		}, "xfabric-outbox-sender");
+		this.sender.setDaemon(true);
+		this.flusher.start();
+		this.sender.start();
+	}
+
+	static long position(long segment, int offset) {
+		return (segment << 32) | offset;
+	}
+
+	static long segmentOf(long position) {
+		return position >>> 32;
+	}
+
+	static int offsetOf(long position) {
+		return (int) position;
+	}
+
+	private File segmentFile(long number) {
+		return new File(directory, SEGMENT_PREFIX
+				+ String.format("%019d", number) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Maps the existing segments, finds the end of the valid data in the last
+	 * one and reads the delivered position from the checkpoint.
+	 */
+	private void recover() throws IOException {
+		String[] names = directory.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(names);
+		for (String name : names) {
+			long number = Long.parseLong(name.substring(
+					SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+			segments.put(number, new Segment(number, new File(directory, name),
+					segmentSize));
+		}
+		if (segments.isEmpty()) {
+			segments.put(0L, new Segment(0, segmentFile(0), segmentSize));
+		}
+		writeSegment = segments.lastEntry().getValue();
+		int offset = 0;
+		ByteBuffer buf = writeSegment.buffer.duplicate();
+		while (true) {
+			int length = validRecordLength(buf, offset, appendCrc);
+			if (length <= 0) {
+				break;
+			}
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		// clear a torn record left by a crash so it is not mistaken for data
+		if (offset + 4 <= segmentSize) {
+			writeSegment.buffer.putInt(offset, 0);
+		}
+		writePosition = position(writeSegment.number, offset);
+		durablePosition = writePosition;
+
+		long delivered = position(segments.firstKey(), 0);
+		File checkpoint = new File(directory, CHECKPOINT_FILE);
+		if (checkpoint.exists()) {
+			RandomAccessFile raf = new RandomAccessFile(checkpoint, "r");
+			try {
+				delivered = Math.max(delivered, raf.readLong());
+			} finally {
+				raf.close();
+			}
+		}
+		deliveredPosition = delivered;
+		checkpointedPosition = delivered;
+	}
+
+	/**
+	 * @return the body length of a complete record at offset, or 0 if there
+	 *         is none
+	 */
+	private int validRecordLength(ByteBuffer buf, int offset, CRC32 crc) {
+		if (offset + RECORD_HEADER_SIZE > segmentSize) {
+			return 0;
+		}
+		int length = buf.getInt(offset);
+		if (length <= 0 || offset + RECORD_HEADER_SIZE + length > segmentSize) {
+			return 0;
+		}
+		ByteBuffer body = buf.duplicate();
+		body.position(offset + RECORD_HEADER_SIZE);
+		body.limit(offset + RECORD_HEADER_SIZE + length);
+		crc.reset();
+		crc.update(body);
+		return ((int) crc.getValue() == buf.getInt(offset + 4)) ? length : 0;
+	}
+
+	/**
+	 * Appends a message to the log. Returns as soon as the message is in the
+	 * mapped log; it becomes durable at the next group commit. Messages
+	 * without an idempotency id are given one.
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @return position of the message in the log, see
+	 *         {@link #awaitDurable(long)}
+	 * @throws IOException
+	 */
+	public long append(String topic, XFabricBoundMessage msg)
+			throws IOException {
+		if (closed) {
+			throw new IOException("Outbox is closed");
+		}
+		if (msg.getIdempotencyId() == null) {
+			msg.setIdempotencyId(UUID.randomUUID().toString());
+		}
+		byte[][] fields = new byte[][] { bytes(topic),
+				bytes(msg.getContentType()), bytes(msg.getDestinationId()),
+				bytes(msg.getSchemaVersion()), bytes(msg.getSchemaUri()),
+				bytes(msg.getIdempotencyId()), bytes(msg.getCorrelationId()),
+				bytes(msg.getMessageContinuationGuid()) };
+		byte[] payload = msg.getRawMessage();
+		int length = 4 + payload.length;
+		for (byte[] field : fields) {
+			length += 4 + (field != null ? field.length : 0);
+		}
+		if (RECORD_HEADER_SIZE + length + 4 > segmentSize) {
+			throw new IllegalArgumentException("Message of " + length
+					+ " bytes does not fit in a segment of " + segmentSize);
+		}
+
+		synchronized (this) {
+			int offset = offsetOf(writePosition);
+			if (offset + RECORD_HEADER_SIZE + length + 4 > segmentSize) {
+				// the zero length already at offset marks the segment end
+				long next = writeSegment.number + 1;
+				writeSegment = new Segment(next, segmentFile(next), segmentSize);
+				segments.put(next, writeSegment);
+				offset = 0;
+			}
+			ByteBuffer buf = writeSegment.buffer.duplicate();
+			buf.position(offset + RECORD_HEADER_SIZE);
+			for (byte[] field : fields) {
+				putBytes(buf, field);
+			}
+			putBytes(buf, payload);
+			ByteBuffer body = writeSegment.buffer.duplicate();
+			body.position(offset + RECORD_HEADER_SIZE);
+			body.limit(offset + RECORD_HEADER_SIZE + length);
+			appendCrc.reset();
+			appendCrc.update(body);
+			buf.putInt(offset + 4, (int) appendCrc.getValue());
+			// the length goes last, so a reader never sees a partial record
+			buf.putInt(offset + RECORD_HEADER_SIZE + length, 0);
+			buf.putInt(offset, length);
+			long end = position(writeSegment.number, offset
+					+ RECORD_HEADER_SIZE + length);
+			writePosition = end;
+			notifyAll();
+			return end;
+		}
+	}
+
+	/**
+	 * Waits until the message appended at the given position has been synced
+	 * to disk.
+	 * 
+	 * @param position
+	 *            position returned by {@link #append(String, XFabricBoundMessage)}
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitDurable(long position)
+			throws InterruptedException {
+		while (durablePosition < position && !closed) {
+			wait();
+		}
+	}
+
+	/**
+	 * Syncs all appended messages to disk now
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		long target;
+		List<Segment> dirty = new ArrayList<Segment>();
+		synchronized (this) {
+			target = writePosition;
+			if (target == durablePosition) {
+				return;
+			}
+			dirty.addAll(segments.subMap(segmentOf(durablePosition), true,
+					segmentOf(target), true).values());
+		}
+		for (Segment segment : dirty) {
+			segment.buffer.force();
+		}
+		synchronized (this) {
+			if (target > durablePosition) {
+				durablePosition = target;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return number of bytes appended but not yet delivered
+	 */
+	public long getBacklogBytes() {
+		long delivered = deliveredPosition;
+		long written = writePosition;
+		if (segmentOf(delivered) == segmentOf(written)) {
+			return offsetOf(written) - offsetOf(delivered);
+		}
+		return (segmentOf(written) - segmentOf(delivered)) * segmentSize
+				- offsetOf(delivered) + offsetOf(written);
+	}
+
+	/**
+	 * Stops the sender and flusher, syncs the log and saves the checkpoint.
+	 * Undelivered messages are sent when the outbox is opened again.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void close() throws IOException, InterruptedException {
+		closed = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		sender.interrupt();
+		sender.join();
+		flusher.join();
+		sync();
+		saveCheckpoint();
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+	}
+
+	private void flushLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(groupCommitMillis);
+				sync();
+				saveCheckpoint();
+			} catch (InterruptedException e) {
+				// closing
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Cannot flush outbox " + directory, e);
+			}
+		}
+	}
+
+	private void sendLoop() {
+		while (!closed) {
+			long position = deliveredPosition;
+			long next = position;
+			try {
+				// records below writePosition are fully visible once it has
+				// been read
+				long written = writePosition;
+				if (position >= written) {
+					synchronized (this) {
+						while (writePosition == position && !closed) {
+							wait();
+						}
+					}
+					continue;
+				}
+				Segment segment = segments.get(segmentOf(position));
+				int offset = offsetOf(position);
+				int length = (segment != null && offset + 4 <= segmentSize)
+						? segment.buffer.getInt(offset) : 0;
+				if (length == 0) {
+					// end of a full segment, move on to the next one
+					deliveredPosition = position(segmentOf(position) + 1, 0);
+					continue;
+				}
+				if (length < 0
+						|| offset + RECORD_HEADER_SIZE + length > segmentSize) {
+					log.warning("Skipping corrupt outbox segment "
+							+ segmentOf(position) + " from offset " + offset);
+					deliveredPosition = (segmentOf(position) < segmentOf(written))
+							? position(segmentOf(position) + 1, 0) : written;
+					continue;
+				}
+				next = position(segmentOf(position), offset
+						+ RECORD_HEADER_SIZE + length);
+				if (validRecordLength(segment.buffer, offset, sendCrc) != length) {
+					log.warning("Skipping outbox record with bad checksum at segment "
+							+ segmentOf(position) + " offset " + offset);
+					deliveredPosition = next;
+					continue;
+				}
+				ByteBuffer record = segment.buffer.duplicate();
+				record.position(offset + RECORD_HEADER_SIZE);
+				record.limit(offset + RECORD_HEADER_SIZE + length);
+				deliver(record);
+				deliveredPosition = next;
+			} catch (InterruptedException e) {
+				// closing
+			} catch (IOException e) {
+				// not delivered; try the same record again
+				pause();
+			} catch (RuntimeException e) {
+				// a record that cannot be read or sent would block the
+				// outbox forever, so it is logged and skipped
+				log.log(Level.SEVERE, "Skipping outbox record at segment "
+						+ segmentOf(position) + " offset "
+						+ offsetOf(position), e);
+				if (next != position) {
+					deliveredPosition = next;
+				} else {
+					pause();
+				}
+			}
+		}
+	}
+
+	private void deliver(ByteBuffer record) throws IOException {
+		String topic = string(record);
+		AvroContentType contentType = AvroContentType
+				.getAvroContentType(string(record));
+		String destinationId = string(record);
+		String schemaVersion = string(record);
+		String schemaUri = string(record);
+		String idempotencyId = string(record);
+		String correlationId = string(record);
+		String continuationGuid = string(record);
+		int payloadLength = record.getInt();
+		if (payloadLength < 0 || payloadLength > record.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] payload = new byte[payloadLength];
+		record.get(payload);
+		XFabricBoundMessage msg = new XFabricBoundMessage(payload, contentType);
+		msg.setDestinationId(destinationId);
+		msg.setSchemaVersion(schemaVersion);
+		msg.setSchemaUri(schemaUri);
+		msg.setIdempotencyId(idempotencyId);
+		msg.setCorrelationId(correlationId);
+		msg.setMessageContinuationGuid(continuationGuid);
+		try {
+			publisher.post(topic, msg);
+		} catch (XFabricHttpException e) {
+			if (publisher.getRetryPolicy().isRetryable(e)) {
+				throw new IOException(e);
+			}
+			// the fabric refused the message; resending will not help
+			log.warning("Fabric rejected outbox message " + idempotencyId
+					+ " to " + topic + " with HTTP " + e.getHttpResponseCode());
+		}
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(RESEND_DELAY_MILLIS);
+		} catch (InterruptedException e) {
+			// closing
+		}
+	}
+
+	private void saveCheckpoint() throws IOException {
+		long delivered = deliveredPosition;
+		synchronized (checkpointLock) {
+			if (delivered == checkpointedPosition) {
+				return;
+			}
+			File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.setLength(0);
+				raf.writeLong(delivered);
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+			if (!tmp.renameTo(new File(directory, CHECKPOINT_FILE))) {
+				throw new IOException("Cannot save outbox checkpoint");
+			}
+			checkpointedPosition = delivered;
+		}
+		// segments before the delivered one are no longer needed
+		while (segments.firstKey() < segmentOf(delivered)) {
+			Segment segment = segments.pollFirstEntry().getValue();
+			segment.close();
+			segment.file.delete();
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return (s != null) ? s.getBytes(UTF8) : null;
+	}
+
+	private static void putBytes(ByteBuffer buf, byte[] b) {
+		if (b == null) {
+			buf.putInt(-1);
+		} else {
+			buf.putInt(b.length);
+			buf.put(b);
+		}
+	}
+
+	private static String string(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		byte[] b = new byte[length];
+		buf.get(b);
+		return new String(b, UTF8);
+	}
+}
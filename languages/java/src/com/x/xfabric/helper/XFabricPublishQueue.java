@@ -0,0 +1,333 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.apache.avro.Schema;
+
+import com.x.xfabric.helper.avro.AvroContentType;
+import com.x.xfabric.helper.avro.AvroEncDecoder;
+
+/**
+ * Publishing stage that lets producers hand off messages without waiting for
+ * the network.
+ * 
+ * Messages are queued and drained by a background thread in batches: a batch
+ * is dispatched as soon as it holds batchSize messages, or flushInterval
+ * milliseconds after its first message arrived, whichever comes first. Each
+ * message is posted as it was offered, unless the queue was created with
+ * coalescing enabled: then binary messages of a batch that were encoded from
+ * records of the same schema, and share topic, schema version, schema URI and
+ * destination, are posted together as one avro/container message. Receivers
+ * must read those with {@link XFabricMessage#getMessages(Schema)}, and all
+ * producers of a container get back the GUID of that single message. Messages
+ * carrying their own idempotency id, correlation id or continuation GUID, and
+ * messages of other content types, are never coalesced. Requests go through an
+ * {@link XFabricPublisher}, whose in-flight limit bounds the number of
+ * concurrent requests. When the queue is full, offers are rejected so
+ * producers see backpressure instead of unbounded memory growth.
+ */
+public class XFabricPublishQueue {
+
+	static final class Entry {
+
+		final String topic;
+		final XFabricBoundMessage message;
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+
+		Entry(String topic, XFabricBoundMessage message) {
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+
+	private final XFabricPublisher publisher;
+	private final BlockingQueue<Entry> queue;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final boolean coalesce;
+	private final Thread drainer;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param publisher
+	 *            publisher used to send the batches
+	 * @param capacity
+	 *            maximum number of queued messages
+	 * @param batchSize
+	 *            number of messages that triggers a flush
+	 * @param flushIntervalMillis
+	 *            maximum time a message waits for its batch to fill up
+	 */
+	public XFabricPublishQueue(XFabricPublisher publisher, int capacity,
+			int batchSize, long flushIntervalMillis) {
+		this(publisher, capacity, batchSize, flushIntervalMillis, false);
+	}
+
+	/**
+	 * @param publisher
+	 *            publisher used to send the batches
+	 * @param capacity
+	 *            maximum number of queued messages
+	 * @param batchSize
+	 *            number of messages that triggers a flush
+	 * @param flushIntervalMillis
+	 *            maximum time a message waits for its batch to fill up
+	 * @param coalesce
+	 *            whether binary messages of a batch may be merged into one
+	 *            avro/container message; receivers must then accept
+	 *            containers, and the merged messages share one GUID
+	 */
+	public XFabricPublishQueue(XFabricPublisher publisher, int capacity,
+			int batchSize, long flushIntervalMillis, boolean coalesce) {
+		if (capacity <= 0 || batchSize <= 0 || flushIntervalMillis < 0) {
+			throw new IllegalArgumentException(
+					"capacity and batchSize must be positive, flushIntervalMillis not negative");
+		}
+		this.publisher = publisher;
+		this.queue = new ArrayBlockingQueue<Entry>(capacity);
+		this.batchSize = batchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS
+				.toNanos(flushIntervalMillis);
+		this.coalesce = coalesce;
+		this.drainer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "xfabric-publish-queue");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	/**
+	 * Queues a message for publishing. Never blocks.
+	 * 
+	 * @param topic
+	 * @param message
+	 * @return future completed with the message GUID once the message is
+	 *         posted; when coalescing, messages posted together share the
+	 *         GUID of their container message
+	 * @throws RejectedExecutionException
+	 *             if the queue is full or closed
+	 */
+	public CompletableFuture<String> offer(String topic,
+			XFabricBoundMessage message) {
+		if (closed) {
+			throw new RejectedExecutionException("Publish queue is closed");
+		}
+		Entry entry = new Entry(topic, message);
+		if (!queue.offer(entry)) {
+			throw new RejectedExecutionException("Publish queue is full");
+		}
+		// close() may have run its final drain between the check above and
+		// the offer; take the entry back unless someone else already has
+		if (closed && queue.remove(entry)) {
+			throw new RejectedExecutionException("Publish queue is closed");
+		}
+		return entry.result;
+	}
+
+	/**
+	 * @return number of messages that can be queued before offers are
+	 *         rejected
+	 */
+	public int getRemainingCapacity() {
+		return queue.remainingCapacity();
+	}
+
+	/**
+	 * @return number of messages waiting to be dispatched
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Stops accepting messages and waits until the queued ones have been
+	 * dispatched. Messages still in flight complete through their futures.
+	 * Interrupting the drainer thread closes the queue as well.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		drainer.join();
+		// offers racing with close may have slipped in after the last drain
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			entry.result.completeExceptionally(new RejectedExecutionException(
+					"Publish queue is closed"));
+		}
+	}
+
+	private void drain() {
+		List<Entry> batch = new ArrayList<Entry>(batchSize);
+		boolean interrupted = false;
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + flushIntervalNanos;
+				while (batch.size() < batchSize) {
+					if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+						continue;
+					}
+					if (closed) {
+						// don't hold the last batch back when shutting down
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// flush what we have, then drain the rest without waiting
+				interrupted = true;
+				closed = true;
+			}
+			dispatch(batch);
+			batch.clear();
+			if (interrupted) {
+				while (queue.drainTo(batch, batchSize) > 0) {
+					dispatch(batch);
+					batch.clear();
+				}
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void dispatch(List<Entry> batch) {
+		Map<List<Object>, List<Entry>> groups = new LinkedHashMap<List<Object>, List<Entry>>();
+		for (Entry entry : batch) {
+			List<Object> key = coalesce ? containerKey(entry) : null;
+			if (key == null) {
+				post(entry.topic, entry.message, Arrays.asList(entry));
+				continue;
+			}
+			List<Entry> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Entry>();
+				groups.put(key, group);
+			}
+			group.add(entry);
+		}
+		for (List<Entry> group : groups.values()) {
+			Entry first = group.get(0);
+			if (group.size() == 1) {
+				post(first.topic, first.message, group);
+				continue;
+			}
+			XFabricBoundMessage container;
+			try {
+				container = toContainer(group);
+			} catch (IOException e) {
+				fail(group, e);
+				continue;
+			} catch (RuntimeException e) {
+				fail(group, e);
+				continue;
+			}
+			post(first.topic, container, group);
+		}
+	}
+
+	/**
+	 * @return key of the messages entry can share a container with, or null
+	 *         if it must be posted on its own
+	 */
+	private static List<Object> containerKey(Entry entry) {
+		XFabricBoundMessage msg = entry.message;
+		if (msg.getSchema() == null
+				|| !AvroContentType.AVRO_BINARY.getContentType().equals(
+						msg.getContentType())
+				|| msg.getIdempotencyId() != null
+				|| msg.getCorrelationId() != null
+				|| msg.getMessageContinuationGuid() != null) {
+			return null;
+		}
+		return Arrays.<Object> asList(entry.topic, msg.getSchema(),
+				msg.getSchemaVersion(), msg.getSchemaUri(),
+				msg.getDestinationId());
+	}
+
+	private static void fail(List<Entry> group, Throwable t) {
+		for (Entry entry : group) {
+			entry.result.completeExceptionally(t);
+		}
+	}
+
+	private static XFabricBoundMessage toContainer(List<Entry> group)
+			throws IOException {
+		XFabricBoundMessage first = group.get(0).message;
+		List<byte[]> datums = new ArrayList<byte[]>(group.size());
+		for (Entry entry : group) {
+			datums.add(entry.message.getRawMessage());
+		}
+		XFabricBoundMessage container = new XFabricBoundMessage(
+				AvroEncDecoder.encodeContainerOfBinary(first.getSchema(),
+						datums, null), AvroContentType.AVRO_CONTAINER);
+		container.setSchemaVersion(first.getSchemaVersion());
+		container.setSchemaUri(first.getSchemaUri());
+		container.setDestinationId(first.getDestinationId());
+		return container;
+	}
+
+	private void post(String topic, XFabricBoundMessage message,
+			final List<Entry> entries) {
+		publisher.postAsync(topic, message).whenComplete(
+				new BiConsumer<String, Throwable>() {
+					public void accept(String guid, Throwable t) {
+						for (Entry entry : entries) {
+							if (t != null) {
+								entry.result.completeExceptionally(t);
+							} else {
+								entry.result.complete(guid);
+							}
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,242 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import com.x.xfabric.helper.metrics.Metrics;
+
+/**
+ * Publishes messages to the fabric over a pool of persistent connections.
+ * 
+ * Unlike {@link XFabricBoundMessage#post(String, String, String)}, which opens
+ * a new connection for every message, a publisher keeps its connections (and
+ * their TLS sessions) open between posts, multiplexing requests over HTTP/2
+ * where the fabric supports it. Posts are asynchronous, and the number of
+ * requests in flight at any time is capped. Publishers are thread-safe and
+ * meant to be shared.
+ */
+public class XFabricPublisher {
+
+	/**
+	 * Default maximum number of requests in flight
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	private final HttpClient client;
+	private final String fabricUrl;
+	private final String token;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+
+	/**
+	 * @param fabricUrl
+	 *            fabric endpoint, e.g. {@link Constants#SANDBOX_FABRIC_ENDPOINT}
+	 * @param token
+	 *            bearer token used to authorize the posts
+	 */
+	public XFabricPublisher(String fabricUrl, String token) {
+		this(fabricUrl, token, DEFAULT_MAX_IN_FLIGHT, null);
+	}
+
+	/**
+	 * @param fabricUrl
+	 *            fabric endpoint, e.g. {@link Constants#SANDBOX_FABRIC_ENDPOINT}
+	 * @param token
+	 *            bearer token used to authorize the posts
+	 * @param maxInFlight
+	 *            maximum number of requests in flight
+	 * @param executor
+	 *            executor for completing the returned futures, or null to use
+	 *            the default one
+	 */
+	public XFabricPublisher(String fabricUrl, String token, int maxInFlight,
+			Executor executor) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.fabricUrl = fabricUrl;
+		this.token = token;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(
+						Duration.ofMillis(XFabricMessageHelper.HTTP_CONNECTION_TIMEOUT));
+		if (executor != null) {
+			builder.executor(executor);
+		}
+		this.client = builder.build();
+	}
+
+	/**
+	 * Posts a message asynchronously. If the maximum number of requests is
+	 * already in flight, the caller blocks until one of them completes.
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @return future completed with the message GUID, or exceptionally with an
+	 *         {@link XFabricHttpException} or {@link IOException}
+	 */
+	public CompletableFuture<String> postAsync(String topic,
+			XFabricBoundMessage msg) {
+		HttpRequest request;
+		try {
+			request = buildRequest(topic, msg);
+		} catch (IOException e) {
+			return failed(e);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return failed(e);
+		}
+		CompletableFuture<HttpResponse<Void>> response;
+		final long start = System.nanoTime();
+		try {
+			response = client.sendAsync(request,
+					HttpResponse.BodyHandlers.discarding());
+		} catch (RuntimeException e) {
+			inFlight.release();
+			return failed(e);
+		}
+		return response.whenComplete(
+				new BiConsumer<HttpResponse<Void>, Throwable>() {
+					public void accept(HttpResponse<Void> r, Throwable t) {
+						inFlight.release();
+						Metrics.getRecorder().recordPublish(
+								System.nanoTime() - start,
+								(r != null) ? r.statusCode() : -1);
+					}
+				}).thenApply(new Function<HttpResponse<Void>, String>() {
+			public String apply(HttpResponse<Void> r) {
+				if (r.statusCode() != 200) {
+					throw new CompletionException(new XFabricHttpException(
+							"HTTP " + r.statusCode(), r.statusCode()));
+				}
+				return r.headers()
+						.firstValue(XFabricMessageHelper.MESSAGE_GUID_HEADER)
+						.orElse(null);
+			}
+		});
+	}
+
+	/**
+	 * Posts a message and waits for the fabric's response, reusing pooled
+	 * connections.
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @return message GUID
+	 * @throws IOException
+	 * @throws XFabricHttpException
+	 */
+	public String post(String topic, XFabricBoundMessage msg)
+			throws IOException, XFabricHttpException {
+		try {
+			return postAsync(topic, msg).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while posting");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XFabricHttpException) {
+				throw (XFabricHttpException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return number of requests currently in flight
+	 */
+	public int getInFlightCount() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	HttpRequest buildRequest(String topic, XFabricBoundMessage msg)
+			throws IOException {
+		byte[] body = msg.getEncodedMessage();
+		HttpRequest.Builder builder = HttpRequest.newBuilder(
+				URI.create(fabricUrl + topic))
+				.timeout(Duration.ofMillis(XFabricMessageHelper.HTTP_READ_TIMEOUT))
+				.header(XFabricMessageHelper.AUTHORIZATION_HDR, token)
+				.header(XFabricMessageHelper.CONTENTTYPE_HDR, msg.getContentType())
+				.header(XFabricMessageHelper.USERAGENT_HDR,
+						XFabricMessageHelper.USERAGENT_TEXT)
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body));
+		if (msg.getContentEncoding() != null) {
+			builder.header(XFabricMessageHelper.CONTENTENCODING_HDR,
+					msg.getContentEncoding());
+		}
+		if (msg.getMessageContinuationGuid() != null) {
+			builder.header(XFabricMessageHelper.MESSAGEGUID_CONTINUATION_HDR,
+					msg.getMessageContinuationGuid());
+		}
+		if (msg.getDestinationId() != null) {
+			builder.header(XFabricMessageHelper.DESTINATION_HDR,
+					msg.getDestinationId());
+		}
+		if (msg.getSchemaVersion() != null) {
+			builder.header(XFabricMessageHelper.SCHEMAVERSION_HDR,
+					msg.getSchemaVersion());
+		}
+		if (msg.getSchemaUri() != null) {
+			builder.header(XFabricMessageHelper.SCHEMAURI_HDR, msg.getSchemaUri());
+		}
+		if (msg.getIdempotencyId() != null) {
+			builder.header(XFabricMessageHelper.MESSAGE_IDEMPOTENCY_HDR,
+					msg.getIdempotencyId());
+		}
+		if (msg.getCorrelationId() != null) {
+			builder.header(XFabricMessageHelper.CORRELATIONID_HDR,
+					msg.getCorrelationId());
+		}
+		return builder.build();
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable t) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+		return future;
+	}
+}
@@ -0,0 +1,281 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Publisher that retries failed posts according to a {@link RetryPolicy} and
+ * stops posting to topics that keep failing through a per-topic
+ * {@link CircuitBreaker}.
+ * 
+ * Messages without an idempotency id get a random one before the first
+ * attempt, so that the fabric can discard duplicates when a post that
+ * actually succeeded is retried. Retries are scheduled rather than slept, so
+ * backing off does not hold a thread.
+ */
+public class XFabricRetryingPublisher {
+
+	/**
+	 * Runs due retries. A retry may block waiting for a free in-flight slot
+	 * of its publisher, so it gets a pooled thread of its own rather than
+	 * running on the shared timer thread.
+	 */
+	private static final ExecutorService retryExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "xfabric-retry");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final XFabricPublisher publisher;
+	private final RetryPolicy policy;
+	private final int breakerFailureThreshold;
+	private final long breakerOpenMillis;
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+	private final CircuitBreaker.Listener breakerListener = new CircuitBreaker.Listener() {
+		public void stateChanged(CircuitBreaker breaker,
+				CircuitBreaker.State from, CircuitBreaker.State to) {
+			if (to == CircuitBreaker.State.OPEN) {
+				breakerOpenCount.incrementAndGet();
+			} else if (to == CircuitBreaker.State.CLOSED) {
+				breakerCloseCount.incrementAndGet();
+			}
+		}
+	};
+
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong backoffMillis = new AtomicLong();
+	private final AtomicLong breakerOpenCount = new AtomicLong();
+	private final AtomicLong breakerCloseCount = new AtomicLong();
+	private final AtomicLong breakerRejectCount = new AtomicLong();
+
+	/**
+	 * Uses the default retry policy, and opens a topic's breaker after 5
+	 * consecutive failures for 30 seconds.
+	 * 
+	 * @param publisher
+	 */
+	public XFabricRetryingPublisher(XFabricPublisher publisher) {
+		this(publisher, new RetryPolicy(), 5, 30000);
+	}
+
+	/**
+	 * @param publisher
+	 *            publisher making the actual posts
+	 * @param policy
+	 *            retry policy
+	 * @param breakerFailureThreshold
+	 *            consecutive failures that open a topic's breaker
+	 * @param breakerOpenMillis
+	 *            time a breaker stays open before a trial post
+	 */
+	public XFabricRetryingPublisher(XFabricPublisher publisher,
+			RetryPolicy policy, int breakerFailureThreshold,
+			long breakerOpenMillis) {
+		this.publisher = publisher;
+		this.policy = policy;
+		this.breakerFailureThreshold = breakerFailureThreshold;
+		this.breakerOpenMillis = breakerOpenMillis;
+	}
+
+	/**
+	 * Posts a message, retrying retryable failures.
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @return future completed with the message GUID, or exceptionally with
+	 *         the last failure; {@link XFabricCircuitOpenException} if the
+	 *         topic's breaker is open
+	 */
+	public CompletableFuture<String> postAsync(String topic,
+			XFabricBoundMessage msg) {
+		if (msg.getIdempotencyId() == null) {
+			msg.setIdempotencyId(UUID.randomUUID().toString());
+		}
+		CompletableFuture<String> result = new CompletableFuture<String>();
+		attempt(topic, msg, getBreaker(topic), 1, result);
+		return result;
+	}
+
+	/**
+	 * Posts a message and waits for the outcome, retrying retryable failures.
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @return message GUID
+	 * @throws IOException
+	 * @throws XFabricHttpException
+	 */
+	public String post(String topic, XFabricBoundMessage msg)
+			throws IOException, XFabricHttpException {
+		try {
+			return postAsync(topic, msg).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while posting");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XFabricHttpException) {
+				throw (XFabricHttpException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private void attempt(final String topic, final XFabricBoundMessage msg,
+			final CircuitBreaker breaker, final int attempt,
+			final CompletableFuture<String> result) {
+		if (!breaker.allowRequest()) {
+			breakerRejectCount.incrementAndGet();
+			result.completeExceptionally(new XFabricCircuitOpenException(
+					"Circuit open for " + breaker.getName()));
+			return;
+		}
+		publisher.postAsync(topic, msg).whenComplete(
+				new BiConsumer<String, Throwable>() {
+					public void accept(String guid, Throwable t) {
+						if (t == null) {
+							breaker.onSuccess();
+							result.complete(guid);
+							return;
+						}
+						Throwable cause = unwrap(t);
+						if (!policy.isRetryable(cause)) {
+							// the fabric is up, it just refused this message
+							breaker.onSuccess();
+							result.completeExceptionally(cause);
+							return;
+						}
+						breaker.onFailure();
+						if (attempt >= policy.getMaxAttempts()) {
+							result.completeExceptionally(cause);
+							return;
+						}
+						long delay = policy.getDelayMillis(attempt);
+						retryCount.incrementAndGet();
+						backoffMillis.addAndGet(delay);
+						CompletableFuture.delayedExecutor(delay,
+								TimeUnit.MILLISECONDS, retryExecutor).execute(
+								new Runnable() {
+									public void run() {
+										attempt(topic, msg, breaker,
+												attempt + 1, result);
+									}
+								});
+					}
+				});
+	}
+
+	private static Throwable unwrap(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException)
+				&& t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+
+	private CircuitBreaker getBreaker(String topic) {
+		CircuitBreaker breaker = breakers.get(topic);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(topic,
+					breakerFailureThreshold, breakerOpenMillis, breakerListener);
+			breaker = breakers.putIfAbsent(topic, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * @return the retry policy
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param topic
+	 * @return state of the topic's breaker
+	 */
+	public CircuitBreaker.State getBreakerState(String topic) {
+		CircuitBreaker breaker = breakers.get(topic);
+		return (breaker != null) ? breaker.getState()
+				: CircuitBreaker.State.CLOSED;
+	}
+
+	/**
+	 * @return number of retries scheduled
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * @return total time spent backing off before retries, in milliseconds
+	 */
+	public long getBackoffMillis() {
+		return backoffMillis.get();
+	}
+
+	/**
+	 * @return number of times a breaker opened
+	 */
+	public long getBreakerOpenCount() {
+		return breakerOpenCount.get();
+	}
+
+	/**
+	 * @return number of times a breaker closed again
+	 */
+	public long getBreakerCloseCount() {
+		return breakerCloseCount.get();
+	}
+
+	/**
+	 * @return number of posts rejected because a breaker was open
+	 */
+	public long getBreakerRejectCount() {
+		return breakerRejectCount.get();
+	}
+}
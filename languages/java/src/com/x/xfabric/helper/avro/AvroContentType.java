@@ -25,7 +25,13 @@ package com.x.xfabric.helper.avro;
 public enum AvroContentType {
 	// Strings need to be lower case.
 	AVRO_BINARY("avro/binary"), //
-	AVRO_JSON("application/json");
+	AVRO_JSON("application/json"), //
+	// Avro single-object encoding: magic, writer schema fingerprint, binary body
+	AVRO_SINGLE_OBJECT("avro/single-object"), //
+	// Avro object container: many records of one schema, in blocks
+	AVRO_CONTAINER("avro/container");
+
+	private static final AvroContentType[] VALUES = values();
 
 	private final String contentType;
 
@@ -38,11 +44,25 @@ public enum AvroContentType {
 	}
 
 	public static AvroContentType getAvroContentType(String contentType) {
-		// Strip everything after semicolon
-		String typeOnly = contentType.replaceFirst( "\\s*;.*$", "" )
-		        .toLowerCase();
-		for ( AvroContentType type : values() ) {
-			if ( type.contentType.equalsIgnoreCase( typeOnly ) ) {
+		if ( contentType == null ) {
+			return null;
+		}
+		// Ignore everything after semicolon, and surrounding whitespace
+		int end = contentType.indexOf( ';' );
+		if ( end < 0 ) {
+			end = contentType.length();
+		}
+		int start = 0;
+		while ( start < end && Character.isWhitespace( contentType.charAt( start ) ) ) {
+			start++;
+		}
+		while ( end > start && Character.isWhitespace( contentType.charAt( end - 1 ) ) ) {
+			end--;
+		}
+		int length = end - start;
+		for ( AvroContentType type : VALUES ) {
+			if ( type.contentType.length() == length
+			        && contentType.regionMatches( true, start, type.contentType, 0, length ) ) {
 				return type;
 			}
 		}
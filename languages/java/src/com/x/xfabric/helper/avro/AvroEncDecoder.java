@@ -24,26 +24,116 @@ package com.x.xfabric.helper.avro;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 
+import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.IndexedRecord;
-import org.apache.avro.io.Decoder;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.Encoder;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
+import com.x.xfabric.helper.metrics.Metrics;
 
 public class AvroEncDecoder {
 	/**
 	 * 
 	 */
 	private static final int BUFFER_SIZE = 4096;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Length of the single-object encoding header: two magic bytes followed by
+	 * the little-endian 64-bit fingerprint of the writer schema
+	 */
+	public static final int SINGLE_OBJECT_HEADER_LENGTH = 10;
+
+	private static final byte SINGLE_OBJECT_MAGIC_0 = (byte) 0xC3;
+	private static final byte SINGLE_OBJECT_MAGIC_1 = (byte) 0x01;
+
+	/**
+	 * Shared cache of datum readers and writers
+	 */
+	private static final DatumCache datumCache = new DatumCache();
+
+	/**
+	 * Per-thread binary decoder, reconfigured for every message
+	 */
+	private static final ThreadLocal<BinaryDecoder> threadDecoder = new ThreadLocal<BinaryDecoder>();
+
+	/**
+	 * Per-thread binary encoder, reconfigured for every message
+	 */
+	private static final ThreadLocal<BinaryEncoder> threadEncoder = new ThreadLocal<BinaryEncoder>();
+
+	/**
+	 * Per-thread scratch output used by the byte[] and ByteBuffer encoders,
+	 * reset after every use so that it gives up buffers grown beyond
+	 * MAX_RETAINED_BUFFER_SIZE
+	 */
+	private static final ThreadLocal<ReusableByteArrayOutputStream> threadOutput = new ThreadLocal<ReusableByteArrayOutputStream>() {
+		@Override
+		protected ReusableByteArrayOutputStream initialValue() {
+			return new ReusableByteArrayOutputStream(BUFFER_SIZE,
+					MAX_RETAINED_BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * Per-thread adapter used to write into caller supplied ByteBuffers
+	 */
+	private static final ThreadLocal<ByteBufferOutputStream> threadByteBufferOutput = new ThreadLocal<ByteBufferOutputStream>() {
+		@Override
+		protected ByteBufferOutputStream initialValue() {
+			return new ByteBufferOutputStream();
+		}
+	};
+
+	/**
+	 * OutputStream that writes into a ByteBuffer and can be retargeted
+	 */
+	private static final class ByteBufferOutputStream extends OutputStream {
+
+		private ByteBuffer target;
+
+		@Override
+		public void write(int b) {
+			target.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			target.put(b, off, len);
+		}
+	}
+
+	/**
+	 * @return the cache of datum readers and writers used for encoding and
+	 *         decoding, e.g. to report its hit and miss counts
+	 */
+	public static DatumCache getDatumCache() {
+		return datumCache;
+	}
 
 	/**
 	 * Encode message using specified content type. Note that the binary form
-	 * contains schema info, while the json form does not.
+	 * contains schema info, while the json form does not. The container form
+	 * holds just this record; see encodeContainer for batches.
 	 * 
 	 * @param <T>
 	 *            The data type of the object, which must extend
@@ -59,16 +149,28 @@ public class AvroEncDecoder {
 	public static <T extends IndexedRecord> byte[] encode(T object,
 			AvroContentType type) throws IOException {
 		Schema schema = object.getSchema();
+		long start = System.nanoTime();
+		byte[] data;
 		if (type == AvroContentType.AVRO_JSON) {
-			return encodeJSON(object, schema);
+			data = encodeJSON(object, schema);
+		} else if (type == AvroContentType.AVRO_SINGLE_OBJECT) {
+			data = encodeSingleObject(object, schema);
+		} else if (type == AvroContentType.AVRO_CONTAINER) {
+			data = encodeContainer(schema, Collections.singletonList(object),
+					null);
 		} else {
-			return encodeBinary(object, schema);
+			data = encodeBinary(object, schema);
 		}
+		Metrics.getRecorder().recordEncode(Metrics.topicOf(schema),
+				System.nanoTime() - start, data.length);
+		return data;
 	}
 
 	/**
 	 * Decode the message using the specified content type.Note that the binary
 	 * form contains schema info, while the json form does not.
+	 * A container must hold exactly one record, as encode() writes it;
+	 * batches are read with openContainer().
 	 * 
 	 * @param <T>
 	 *            The data type of the object, which must extend
@@ -89,31 +191,126 @@ public class AvroEncDecoder {
 	public static <T extends IndexedRecord> T decode(byte[] data,
 			Schema writerSchema, Schema readerSchema, AvroContentType type)
 			throws IOException {
+		long start = System.nanoTime();
+		T result;
 		if (type == AvroContentType.AVRO_JSON) {
-			return AvroEncDecoder.<T> decodeJSON(data, writerSchema,
+			result = AvroEncDecoder.<T> decodeJSON(data, writerSchema,
 					readerSchema);
+		} else if (type == AvroContentType.AVRO_SINGLE_OBJECT) {
+			getSingleObjectFingerprint(data, 0, data.length);
+			result = AvroEncDecoder.<T> decodeBinary(data,
+					SINGLE_OBJECT_HEADER_LENGTH, data.length
+							- SINGLE_OBJECT_HEADER_LENGTH, writerSchema,
+					readerSchema, null);
+		} else if (type == AvroContentType.AVRO_CONTAINER) {
+			result = AvroEncDecoder.<T> readSingleRecord(AvroEncDecoder
+					.<T> openContainer(data, 0, data.length, readerSchema));
 		} else {
-			return AvroEncDecoder.<T> decodeBinary(data, writerSchema,
+			result = AvroEncDecoder.<T> decodeBinary(data, writerSchema,
 					readerSchema);
 		}
+		Metrics.getRecorder().recordDecode(Metrics.topicOf(writerSchema),
+				System.nanoTime() - start, data.length);
+		return result;
+	}
+
+	/**
+	 * Decode a single message read directly from a stream, e.g. the body of an
+	 * incoming request, without first buffering the whole payload. The binary
+	 * decoder reads ahead, so the stream should not be used for anything else
+	 * afterwards.
+	 * 
+	 * @param <T>
+	 *            The data type of the object, which must extend
+	 *            {@link IndexedRecord}
+	 * @param in
+	 *            stream positioned at the start of the message
+	 * @param writerSchema
+	 *            The schema that was used to write the message
+	 * @param readerSchema
+	 *            The expected schema for the message
+	 * @param type
+	 *            The content type
+	 * @return The decoded object
+	 * @throws IOException
+	 *             If there is a decoding or read error
+	 */
+	public static <T extends IndexedRecord> T decode(InputStream in,
+			Schema writerSchema, Schema readerSchema, AvroContentType type)
+			throws IOException {
+		long start = System.nanoTime();
+		T result;
+		if (type == AvroContentType.AVRO_JSON) {
+			result = AvroEncDecoder.<T> decodeJSON(in, writerSchema,
+					readerSchema);
+		} else if (type == AvroContentType.AVRO_CONTAINER) {
+			SpecificDatumReader<T> reader = (readerSchema != null) ? new SpecificDatumReader<T>(
+					readerSchema) : new SpecificDatumReader<T>();
+			result = AvroEncDecoder.<T> readSingleRecord(new DataFileStream<T>(
+					in, reader));
+		} else {
+			if (type == AvroContentType.AVRO_SINGLE_OBJECT) {
+				readSingleObjectHeader(in);
+			}
+			DatumReader<T> reader = datumCache.<T> getDatumReader(
+					writerSchema, readerSchema);
+			result = reader.read(null, getThreadDecoder(in));
+		}
+		Metrics.getRecorder().recordDecode(Metrics.topicOf(writerSchema),
+				System.nanoTime() - start, -1);
+		return result;
+	}
+
+	/**
+	 * Reads the only record of a container, as written by encode()
+	 * 
+	 * @throws IOException
+	 *             if the container does not hold exactly one record; batches
+	 *             are read with openContainer
+	 */
+	private static <T extends IndexedRecord> T readSingleRecord(
+			DataFileStream<T> container) throws IOException {
+		try {
+			if (!container.hasNext()) {
+				throw new IOException("Empty container, expecting one record");
+			}
+			T record = container.next();
+			if (container.hasNext()) {
+				throw new IOException(
+						"Container holds more than one record; read batches with openContainer()");
+			}
+			return record;
+		} catch (AvroRuntimeException e) {
+			throw new IOException("Invalid container", e);
+		}
 	}
 
 	private static <T extends IndexedRecord> T decodeJSON(byte[] data,
 			Schema writerSchema, Schema readerSchema) throws IOException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		SpecificDatumReader<T> reader = new SpecificDatumReader<T>(
+		return AvroEncDecoder.<T> decodeJSON(new ByteArrayInputStream(data),
 				writerSchema, readerSchema);
-		Decoder decoder = DecoderFactory.get().jsonDecoder(readerSchema, bais);
-		T result = reader.read(null, decoder);
-		bais.close();
-		return result;
+	}
+
+	/**
+	 * JSON is parsed against the writer schema and transcoded to binary, which
+	 * is then decoded by the cached binary reader like any binary message.
+	 */
+	private static <T extends IndexedRecord> T decodeJSON(InputStream in,
+			Schema writerSchema, Schema readerSchema) throws IOException {
+		ReusableByteArrayOutputStream out = threadOutput.get();
+		try {
+			AvroJsonTranscoder.jsonToBinary(in, writerSchema, out);
+			return AvroEncDecoder.<T> decodeBinary(out.getBuffer(), 0,
+					out.size(), writerSchema, readerSchema, null);
+		} finally {
+			out.reset();
+		}
 	}
 
 	private static <T extends IndexedRecord> byte[] encodeJSON(T object,
 			Schema schema) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
-		SpecificDatumWriter<T> writer = new SpecificDatumWriter<T>(
-				object.getSchema());
+		SpecificDatumWriter<T> writer = datumCache.<T> getWriter(schema);
 		Encoder encoder = EncoderFactory.get().jsonEncoder(schema, baos);
 		writer.write(object, encoder);
 		encoder.flush();
@@ -123,25 +320,307 @@ public class AvroEncDecoder {
 
 	private static <T extends IndexedRecord> byte[] encodeBinary(T object,
 			Schema schema) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
-		SpecificDatumWriter<T> writer = new SpecificDatumWriter<T>(
-				object.getSchema());
-		Encoder encoder = EncoderFactory.get().binaryEncoder(baos, null);
+		ReusableByteArrayOutputStream out = threadOutput.get();
+		try {
+			encodeBinary(object, schema, out);
+			return out.toByteArray();
+		} finally {
+			out.reset();
+		}
+	}
+
+	private static <T extends IndexedRecord> byte[] encodeSingleObject(
+			T object, Schema schema) throws IOException {
+		ReusableByteArrayOutputStream out = threadOutput.get();
+		try {
+			long fingerprint = SchemaFingerprint.fingerprint64(schema);
+			out.write(SINGLE_OBJECT_MAGIC_0);
+			out.write(SINGLE_OBJECT_MAGIC_1);
+			for (int i = 0; i < 8; i++) {
+				out.write((int) (fingerprint >>> (8 * i)));
+			}
+			encodeBinary(object, schema, out);
+			return out.toByteArray();
+		} finally {
+			out.reset();
+		}
+	}
+
+	/**
+	 * Reads the writer schema fingerprint from the header of a message in
+	 * single-object encoding.
+	 * 
+	 * @param data
+	 *            buffer holding the encoded message
+	 * @param offset
+	 *            start of the message in data
+	 * @param length
+	 *            length of the message
+	 * @return CRC-64-AVRO fingerprint of the writer schema
+	 * @throws IOException
+	 *             If the message does not start with a single-object header
+	 */
+	public static long getSingleObjectFingerprint(byte[] data, int offset,
+			int length) throws IOException {
+		if (length < SINGLE_OBJECT_HEADER_LENGTH
+				|| data[offset] != SINGLE_OBJECT_MAGIC_0
+				|| data[offset + 1] != SINGLE_OBJECT_MAGIC_1) {
+			throw new IOException("Not an Avro single-object encoded message");
+		}
+		long fingerprint = 0;
+		for (int i = SINGLE_OBJECT_HEADER_LENGTH - 1; i >= 2; i--) {
+			fingerprint = (fingerprint << 8) | (data[offset + i] & 0xff);
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Reads and checks the single-object header at the start of a stream.
+	 * 
+	 * @param in
+	 *            stream positioned at the start of the message
+	 * @return CRC-64-AVRO fingerprint of the writer schema
+	 * @throws IOException
+	 *             If the stream does not start with a single-object header
+	 */
+	public static long readSingleObjectHeader(InputStream in)
+			throws IOException {
+		byte[] header = new byte[SINGLE_OBJECT_HEADER_LENGTH];
+		int offset = 0;
+		while (offset < header.length) {
+			int n = in.read(header, offset, header.length - offset);
+			if (n < 0) {
+				throw new EOFException(
+						"Message too short for a single-object header");
+			}
+			offset += n;
+		}
+		return getSingleObjectFingerprint(header, 0, header.length);
+	}
+
+	private static <T extends IndexedRecord> void encodeBinary(T object,
+			Schema schema, OutputStream out) throws IOException {
+		DatumWriter<T> writer = datumCache.<T> getDatumWriter(schema);
+		// The target is already in memory, so write straight through rather
+		// than staging the bytes in the buffered encoder's own buffer
+		BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out,
+				threadEncoder.get());
+		threadEncoder.set(encoder);
 		writer.write(object, encoder);
 		encoder.flush();
-		baos.close();
-		return baos.toByteArray();
 	}
 
 	private static <T extends IndexedRecord> T decodeBinary(byte[] data,
 			Schema writerSchema, Schema readerSchema) throws IOException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		SpecificDatumReader<T> reader = new SpecificDatumReader<T>(
-				writerSchema, readerSchema);
-		Decoder decoder = DecoderFactory.get().binaryDecoder(bais, null);
-		T result = reader.read(null, decoder);
-		bais.close();
-		return result;
+		return AvroEncDecoder.<T> decodeBinary(data, 0, data.length,
+				writerSchema, readerSchema, null);
+	}
 
+	/**
+	 * Decode a binary message straight from a region of a byte array, reusing
+	 * the calling thread's decoder. In steady state this allocates nothing
+	 * beyond the decoded record, and not even that when a record to reuse is
+	 * passed in.
+	 * 
+	 * @param <T>
+	 *            The data type of the object, which must extend
+	 *            {@link IndexedRecord}
+	 * @param data
+	 *            buffer holding the encoded message
+	 * @param offset
+	 *            start of the message in data
+	 * @param length
+	 *            length of the message
+	 * @param writerSchema
+	 *            The schema that was used to write the message
+	 * @param readerSchema
+	 *            The expected schema for the message
+	 * @param reuse
+	 *            record to decode into, or null to create a new one
+	 * @return The decoded object
+	 * @throws IOException
+	 *             If there is a decoding error
+	 */
+	public static <T extends IndexedRecord> T decodeBinary(byte[] data,
+			int offset, int length, Schema writerSchema, Schema readerSchema,
+			T reuse) throws IOException {
+		DatumReader<T> reader = datumCache.<T> getDatumReader(writerSchema,
+				readerSchema);
+		return reader.read(reuse, getThreadDecoder(data, offset, length));
+	}
+
+	/**
+	 * @return the calling thread's binary decoder, reconfigured to read a
+	 *         region of a byte array
+	 */
+	static BinaryDecoder getThreadDecoder(byte[] data, int offset, int length) {
+		BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(data,
+				offset, length, threadDecoder.get());
+		threadDecoder.set(decoder);
+		return decoder;
+	}
+
+	/**
+	 * @return the calling thread's binary decoder, reconfigured to read a
+	 *         stream
+	 */
+	static BinaryDecoder getThreadDecoder(InputStream in) {
+		BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(in,
+				threadDecoder.get());
+		threadDecoder.set(decoder);
+		return decoder;
+	}
+
+	/**
+	 * Encode a message in binary form into a caller supplied buffer, reusing
+	 * the calling thread's encoder. The buffer is not reset first, so several
+	 * messages can be appended to it.
+	 * 
+	 * @param <T>
+	 *            The data type of the object, which must extend
+	 *            {@link IndexedRecord}
+	 * @param object
+	 *            The object to encode
+	 * @param out
+	 *            buffer receiving the encoded bytes
+	 * @throws IOException
+	 *             If there is an encoding error
+	 */
+	public static <T extends IndexedRecord> void encodeBinary(T object,
+			ReusableByteArrayOutputStream out) throws IOException {
+		encodeBinary(object, object.getSchema(), (OutputStream) out);
+	}
+
+	/**
+	 * Encode a message in binary form into a caller supplied ByteBuffer,
+	 * starting at its current position. On return the position is advanced
+	 * past the encoded bytes.
+	 * 
+	 * @param <T>
+	 *            The data type of the object, which must extend
+	 *            {@link IndexedRecord}
+	 * @param object
+	 *            The object to encode
+	 * @param target
+	 *            buffer receiving the encoded bytes
+	 * @return number of bytes written
+	 * @throws IOException
+	 *             If there is an encoding error
+	 * @throws BufferOverflowException
+	 *             If target does not have enough room left
+	 */
+	public static <T extends IndexedRecord> int encodeBinary(T object,
+			ByteBuffer target) throws IOException {
+		ByteBufferOutputStream out = threadByteBufferOutput.get();
+		int start = target.position();
+		out.target = target;
+		try {
+			encodeBinary(object, object.getSchema(), out);
+		} finally {
+			out.target = null;
+		}
+		return target.position() - start;
+	}
+
+	/**
+	 * Encode many records of one schema as an Avro object container: a header
+	 * carrying the schema, then blocks of records separated by sync markers,
+	 * each block optionally compressed.
+	 * 
+	 * @param <T>
+	 *            The data type of the records, which must extend
+	 *            {@link IndexedRecord}
+	 * @param schema
+	 *            schema of every record
+	 * @param records
+	 *            The records to encode
+	 * @param codec
+	 *            block compression, e.g. CodecFactory.deflateCodec(6), or null
+	 *            for none
+	 * @return The encoded container
+	 * @throws IOException
+	 *             If there is an encoding error
+	 */
+	public static <T extends IndexedRecord> byte[] encodeContainer(
+			Schema schema, Iterable<T> records, CodecFactory codec)
+			throws IOException {
+		ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream(
+				BUFFER_SIZE);
+		// The container writer sets the schema on its datum writer, so it
+		// gets its own rather than a shared one from the cache
+		DataFileWriter<T> writer = new DataFileWriter<T>(
+				new SpecificDatumWriter<T>(schema));
+		if (codec != null) {
+			writer.setCodec(codec);
+		}
+		writer.create(schema, out);
+		for (T record : records) {
+			writer.append(record);
+		}
+		writer.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode records of one schema that are already binary encoded as an Avro
+	 * object container, copying each datum into the container without
+	 * decoding it.
+	 * 
+	 * @param schema
+	 *            schema every datum was written with
+	 * @param datums
+	 *            binary encoded records
+	 * @param codec
+	 *            block compression, e.g. CodecFactory.deflateCodec(6), or null
+	 *            for none
+	 * @return The encoded container
+	 * @throws IOException
+	 *             If there is an encoding error
+	 */
+	public static byte[] encodeContainerOfBinary(Schema schema,
+			Iterable<byte[]> datums, CodecFactory codec) throws IOException {
+		ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream(
+				BUFFER_SIZE);
+		DataFileWriter<Object> writer = new DataFileWriter<Object>(
+				new SpecificDatumWriter<Object>(schema));
+		if (codec != null) {
+			writer.setCodec(codec);
+		}
+		writer.create(schema, out);
+		for (byte[] datum : datums) {
+			writer.appendEncoded(ByteBuffer.wrap(datum));
+		}
+		writer.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Open an Avro object container held in a region of a byte array for
+	 * reading in place. The reader iterates the records, and can seek to a
+	 * block position or to the next sync marker after any position.
+	 * 
+	 * @param <T>
+	 *            The data type of the records, which must extend
+	 *            {@link IndexedRecord}
+	 * @param data
+	 *            buffer holding the container
+	 * @param offset
+	 *            start of the container in data
+	 * @param length
+	 *            length of the container
+	 * @param readerSchema
+	 *            The expected schema for the records, or null to read them
+	 *            with the schema stored in the container
+	 * @return reader over the records
+	 * @throws IOException
+	 *             If the container header cannot be read
+	 */
+	public static <T extends IndexedRecord> DataFileReader<T> openContainer(
+			byte[] data, int offset, int length, Schema readerSchema)
+			throws IOException {
+		SpecificDatumReader<T> reader = (readerSchema != null) ? new SpecificDatumReader<T>(
+				readerSchema) : new SpecificDatumReader<T>();
+		return new DataFileReader<T>(new SeekableByteArray(data, offset,
+				length), reader);
 	}
 }
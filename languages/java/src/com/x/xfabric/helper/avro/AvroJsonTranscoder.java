@@ -0,0 +1,418 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.JsonDecoder;
+import org.apache.avro.io.ResolvingDecoder;
+import org.apache.avro.util.Utf8;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Transcodes between Avro binary and Avro's JSON encoding. The schema is
+ * walked while values are read from the binary decoder and written to a JSON
+ * generator, so no records or other intermediate objects are built; strings
+ * are copied from their UTF-8 bytes without being decoded.
+ * 
+ * The output is UTF-8 and follows the Avro JSON encoding, as produced by
+ * {@link AvroEncDecoder#encode} with {@link AvroContentType#AVRO_JSON}. When
+ * the reader schema differs from the writer schema, record fields come out in
+ * the order they are resolved from the writer's data, with fields only the
+ * reader has, filled from their defaults, last.
+ * 
+ * In the other direction, JSON is transcoded to binary so that JSON messages
+ * can be decoded by the same cached binary pipeline as binary ones.
+ */
+public class AvroJsonTranscoder {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	private static final int MAX_RESOLVERS = 64;
+
+	static {
+		jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	}
+
+	/**
+	 * Per-thread decoders and scratch buffers, reused for every message
+	 */
+	private static final class State {
+		BinaryDecoder decoder;
+		Utf8 utf8 = new Utf8();
+		ByteBuffer bytes;
+		char[] chars = new char[256];
+		byte[] fixed = new byte[16];
+		BinaryEncoder encoder;
+		final Map<DatumCache.SchemaPair, ResolvingDecoder> resolvers = new HashMap<DatumCache.SchemaPair, ResolvingDecoder>();
+		final Map<Schema, JsonDecoder> jsonDecoders = new IdentityHashMap<Schema, JsonDecoder>();
+	}
+
+	private static final ThreadLocal<State> threadState = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	private AvroJsonTranscoder() {
+	}
+
+	/**
+	 * Transcode a binary message held in a region of a byte array.
+	 * 
+	 * @param data
+	 *            buffer holding the encoded message
+	 * @param offset
+	 *            start of the message in data
+	 * @param length
+	 *            length of the message
+	 * @param writerSchema
+	 *            The schema that was used to write the message
+	 * @param readerSchema
+	 *            The schema to write the JSON with
+	 * @param out
+	 *            receives the JSON; it is flushed but not closed
+	 * @throws IOException
+	 *             If there is a decoding or write error
+	 */
+	public static void binaryToJson(byte[] data, int offset, int length,
+			Schema writerSchema, Schema readerSchema, OutputStream out)
+			throws IOException {
+		State state = threadState.get();
+		state.decoder = DecoderFactory.get().binaryDecoder(data, offset,
+				length, state.decoder);
+		transcode(state, writerSchema, readerSchema, out);
+	}
+
+	/**
+	 * Transcode a binary message read from a stream. The binary decoder reads
+	 * ahead, so the stream should not be used for anything else afterwards.
+	 * 
+	 * @param in
+	 *            stream positioned at the start of the message
+	 * @param writerSchema
+	 *            The schema that was used to write the message
+	 * @param readerSchema
+	 *            The schema to write the JSON with
+	 * @param out
+	 *            receives the JSON; it is flushed but not closed
+	 * @throws IOException
+	 *             If there is a decoding, read or write error
+	 */
+	public static void binaryToJson(InputStream in, Schema writerSchema,
+			Schema readerSchema, OutputStream out) throws IOException {
+		State state = threadState.get();
+		state.decoder = DecoderFactory.get().binaryDecoder(in, state.decoder);
+		transcode(state, writerSchema, readerSchema, out);
+	}
+
+	/**
+	 * Transcode a message in Avro's JSON encoding to binary. Fields may appear
+	 * in any order in the JSON.
+	 * 
+	 * @param in
+	 *            stream positioned at the start of the JSON message
+	 * @param writerSchema
+	 *            The schema the JSON was written with
+	 * @param out
+	 *            receives the binary message; it is flushed but not closed
+	 * @throws IOException
+	 *             If the JSON does not match the schema, or on a read or
+	 *             write error
+	 */
+	public static void jsonToBinary(InputStream in, Schema writerSchema,
+			OutputStream out) throws IOException {
+		State state = threadState.get();
+		JsonDecoder decoder = getJsonDecoder(state, writerSchema, in);
+		state.encoder = EncoderFactory.get().directBinaryEncoder(out,
+				state.encoder);
+		copy(writerSchema, decoder, state.encoder, state);
+		state.encoder.flush();
+	}
+
+	/**
+	 * JSON grammars are costly to build, so each thread keeps a decoder per
+	 * schema and points it at every new message.
+	 */
+	private static JsonDecoder getJsonDecoder(State state, Schema schema,
+			InputStream in) throws IOException {
+		JsonDecoder decoder = state.jsonDecoders.get(schema);
+		if (decoder == null) {
+			if (state.jsonDecoders.size() >= MAX_RESOLVERS) {
+				state.jsonDecoders.clear();
+			}
+			decoder = DecoderFactory.get().jsonDecoder(schema, in);
+			state.jsonDecoders.put(schema, decoder);
+			return decoder;
+		}
+		return decoder.configure(in);
+	}
+
+	private static void copy(Schema schema, Decoder in, Encoder out,
+			State state) throws IOException {
+		switch (schema.getType()) {
+		case RECORD:
+			for (Schema.Field field : schema.getFields()) {
+				copy(field.schema(), in, out, state);
+			}
+			break;
+		case ENUM:
+			out.writeEnum(in.readEnum());
+			break;
+		case ARRAY:
+			out.writeArrayStart();
+			Schema elementType = schema.getElementType();
+			for (long n = in.readArrayStart(); n != 0; n = in.arrayNext()) {
+				out.setItemCount(n);
+				for (long i = 0; i < n; i++) {
+					out.startItem();
+					copy(elementType, in, out, state);
+				}
+			}
+			out.writeArrayEnd();
+			break;
+		case MAP:
+			out.writeMapStart();
+			Schema valueType = schema.getValueType();
+			for (long n = in.readMapStart(); n != 0; n = in.mapNext()) {
+				out.setItemCount(n);
+				for (long i = 0; i < n; i++) {
+					out.startItem();
+					state.utf8 = in.readString(state.utf8);
+					out.writeString(state.utf8);
+					copy(valueType, in, out, state);
+				}
+			}
+			out.writeMapEnd();
+			break;
+		case UNION:
+			int index = in.readIndex();
+			out.writeIndex(index);
+			copy(schema.getTypes().get(index), in, out, state);
+			break;
+		case FIXED:
+			int size = schema.getFixedSize();
+			if (state.fixed.length < size) {
+				state.fixed = new byte[size];
+			}
+			in.readFixed(state.fixed, 0, size);
+			out.writeFixed(state.fixed, 0, size);
+			break;
+		case STRING:
+			state.utf8 = in.readString(state.utf8);
+			out.writeString(state.utf8);
+			break;
+		case BYTES:
+			state.bytes = in.readBytes(state.bytes);
+			out.writeBytes(state.bytes);
+			break;
+		case INT:
+			out.writeInt(in.readInt());
+			break;
+		case LONG:
+			out.writeLong(in.readLong());
+			break;
+		case FLOAT:
+			out.writeFloat(in.readFloat());
+			break;
+		case DOUBLE:
+			out.writeDouble(in.readDouble());
+			break;
+		case BOOLEAN:
+			out.writeBoolean(in.readBoolean());
+			break;
+		case NULL:
+			in.readNull();
+			out.writeNull();
+			break;
+		default:
+			throw new IOException("Unsupported schema type " + schema.getType());
+		}
+	}
+
+	private static void transcode(State state, Schema writerSchema,
+			Schema readerSchema, OutputStream out) throws IOException {
+		JsonGenerator gen = jsonFactory.createJsonGenerator(out,
+				JsonEncoding.UTF8);
+		if (writerSchema == readerSchema) {
+			write(readerSchema, state.decoder, gen, state);
+		} else {
+			ResolvingDecoder resolver = getResolver(state, writerSchema,
+					readerSchema);
+			resolver.configure(state.decoder);
+			write(readerSchema, resolver, gen, state);
+			resolver.drain();
+		}
+		gen.close();
+	}
+
+	/**
+	 * Resolving grammars are costly to build, so each thread keeps its
+	 * resolvers like the datum readers do.
+	 */
+	private static ResolvingDecoder getResolver(State state,
+			Schema writerSchema, Schema readerSchema) throws IOException {
+		DatumCache.SchemaPair key = new DatumCache.SchemaPair(writerSchema,
+				readerSchema);
+		ResolvingDecoder resolver = state.resolvers.get(key);
+		if (resolver == null) {
+			if (state.resolvers.size() >= MAX_RESOLVERS) {
+				state.resolvers.clear();
+			}
+			resolver = DecoderFactory.get().resolvingDecoder(writerSchema,
+					readerSchema, state.decoder);
+			state.resolvers.put(key, resolver);
+		}
+		return resolver;
+	}
+
+	private static void write(Schema schema, Decoder in, JsonGenerator gen,
+			State state) throws IOException {
+		switch (schema.getType()) {
+		case RECORD:
+			gen.writeStartObject();
+			if (in instanceof ResolvingDecoder) {
+				for (Schema.Field field : ((ResolvingDecoder) in)
+						.readFieldOrder()) {
+					gen.writeFieldName(field.name());
+					write(field.schema(), in, gen, state);
+				}
+			} else {
+				for (Schema.Field field : schema.getFields()) {
+					gen.writeFieldName(field.name());
+					write(field.schema(), in, gen, state);
+				}
+			}
+			gen.writeEndObject();
+			break;
+		case ENUM:
+			gen.writeString(schema.getEnumSymbols().get(in.readEnum()));
+			break;
+		case ARRAY:
+			gen.writeStartArray();
+			Schema elementType = schema.getElementType();
+			for (long n = in.readArrayStart(); n != 0; n = in.arrayNext()) {
+				for (long i = 0; i < n; i++) {
+					write(elementType, in, gen, state);
+				}
+			}
+			gen.writeEndArray();
+			break;
+		case MAP:
+			gen.writeStartObject();
+			Schema valueType = schema.getValueType();
+			for (long n = in.readMapStart(); n != 0; n = in.mapNext()) {
+				for (long i = 0; i < n; i++) {
+					state.utf8 = in.readString(state.utf8);
+					gen.writeFieldName(state.utf8.toString());
+					write(valueType, in, gen, state);
+				}
+			}
+			gen.writeEndObject();
+			break;
+		case UNION:
+			Schema branch = schema.getTypes().get(in.readIndex());
+			if (branch.getType() == Schema.Type.NULL) {
+				in.readNull();
+				gen.writeNull();
+			} else {
+				gen.writeStartObject();
+				gen.writeFieldName(branch.getFullName());
+				write(branch, in, gen, state);
+				gen.writeEndObject();
+			}
+			break;
+		case FIXED:
+			int size = schema.getFixedSize();
+			if (state.fixed.length < size) {
+				state.fixed = new byte[size];
+			}
+			in.readFixed(state.fixed, 0, size);
+			writeLatin1(state.fixed, 0, size, gen, state);
+			break;
+		case STRING:
+			state.utf8 = in.readString(state.utf8);
+			gen.writeUTF8String(state.utf8.getBytes(), 0,
+					state.utf8.getByteLength());
+			break;
+		case BYTES:
+			state.bytes = in.readBytes(state.bytes);
+			writeLatin1(state.bytes.array(), state.bytes.arrayOffset()
+					+ state.bytes.position(), state.bytes.remaining(), gen,
+					state);
+			break;
+		case INT:
+			gen.writeNumber(in.readInt());
+			break;
+		case LONG:
+			gen.writeNumber(in.readLong());
+			break;
+		case FLOAT:
+			gen.writeNumber(in.readFloat());
+			break;
+		case DOUBLE:
+			gen.writeNumber(in.readDouble());
+			break;
+		case BOOLEAN:
+			gen.writeBoolean(in.readBoolean());
+			break;
+		case NULL:
+			in.readNull();
+			gen.writeNull();
+			break;
+		default:
+			throw new IOException("Unsupported schema type " + schema.getType());
+		}
+	}
+
+	/**
+	 * Avro's JSON encoding writes bytes and fixed values as strings with one
+	 * ISO-8859-1 character per byte.
+	 */
+	private static void writeLatin1(byte[] data, int offset, int length,
+			JsonGenerator gen, State state) throws IOException {
+		if (state.chars.length < length) {
+			state.chars = new char[Math.max(length, 2 * state.chars.length)];
+		}
+		char[] chars = state.chars;
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (data[offset + i] & 0xff);
+		}
+		gen.writeString(chars, 0, length);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+
+/**
+ * Reads and skips Avro binary values in place in a byte array, keeping track
+ * of the position so that offsets of values can be recorded.
+ */
+final class BinaryCursor {
+
+	final byte[] data;
+	final int limit;
+	int pos;
+
+	BinaryCursor(byte[] data, int pos, int limit) {
+		this.data = data;
+		this.pos = pos;
+		this.limit = limit;
+	}
+
+	long readLong() {
+		long n = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (pos >= limit || shift > 63) {
+				throw new AvroRuntimeException("Malformed varint at " + pos);
+			}
+			b = data[pos++] & 0xff;
+			n |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	int readInt() {
+		return (int) readLong();
+	}
+
+	boolean readBoolean() {
+		require(1);
+		return data[pos++] != 0;
+	}
+
+	float readFloat() {
+		return Float.intBitsToFloat(readFixedInt());
+	}
+
+	double readDouble() {
+		long low = readFixedInt() & 0xffffffffL;
+		long high = readFixedInt() & 0xffffffffL;
+		return Double.longBitsToDouble((high << 32) | low);
+	}
+
+	private int readFixedInt() {
+		require(4);
+		int n = (data[pos] & 0xff) | ((data[pos + 1] & 0xff) << 8)
+				| ((data[pos + 2] & 0xff) << 16) | ((data[pos + 3] & 0xff) << 24);
+		pos += 4;
+		return n;
+	}
+
+	/**
+	 * Reads the length prefix of a string or bytes value
+	 * 
+	 * @return the length; the value starts at pos
+	 */
+	int readLength() {
+		long length = readLong();
+		if (length < 0 || length > limit - pos) {
+			throw new AvroRuntimeException("Malformed length " + length
+					+ " at " + pos);
+		}
+		return (int) length;
+	}
+
+	void skipBytes(long n) {
+		if (n < 0 || n > limit - pos) {
+			throw new AvroRuntimeException("Cannot skip " + n + " bytes at "
+					+ pos);
+		}
+		pos += (int) n;
+	}
+
+	private void require(int n) {
+		if (n > limit - pos) {
+			throw new AvroRuntimeException("Truncated value at " + pos);
+		}
+	}
+
+	/**
+	 * Skips a value, jumping over strings, bytes, fixed values and array or
+	 * map blocks that carry their size by length.
+	 */
+	void skip(Schema schema) {
+		switch (schema.getType()) {
+		case RECORD:
+			for (Schema.Field field : schema.getFields()) {
+				skip(field.schema());
+			}
+			break;
+		case ARRAY:
+			skipBlocks(schema.getElementType(), false);
+			break;
+		case MAP:
+			skipBlocks(schema.getValueType(), true);
+			break;
+		case UNION:
+			skip(schema.getTypes().get(readInt()));
+			break;
+		case FIXED:
+			skipBytes(schema.getFixedSize());
+			break;
+		case STRING:
+		case BYTES:
+			skipBytes(readLength());
+			break;
+		case INT:
+		case LONG:
+		case ENUM:
+			readLong();
+			break;
+		case FLOAT:
+			skipBytes(4);
+			break;
+		case DOUBLE:
+			skipBytes(8);
+			break;
+		case BOOLEAN:
+			skipBytes(1);
+			break;
+		case NULL:
+			break;
+		default:
+			throw new AvroRuntimeException("Unsupported schema type "
+					+ schema.getType());
+		}
+	}
+
+	private void skipBlocks(Schema itemSchema, boolean map) {
+		for (long count = readLong(); count != 0; count = readLong()) {
+			if (count < 0) {
+				// the block's size in bytes follows its negated count
+				skipBytes(readLong());
+				continue;
+			}
+			for (long i = 0; i < count; i++) {
+				if (map) {
+					skipBytes(readLength());
+				}
+				skip(itemSchema);
+			}
+		}
+	}
+}
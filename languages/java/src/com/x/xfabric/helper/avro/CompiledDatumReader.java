@@ -0,0 +1,868 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.parsing.ResolvingGrammarGenerator;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.Utf8;
+
+/**
+ * A datum reader specialized for one (writer, reader) schema pair.
+ * 
+ * The interpretive {@link SpecificDatumReader} walks the reader schema for
+ * every message and asks a resolving decoder, one grammar symbol at a time,
+ * what the writer actually sent. This reader does that resolution once, when
+ * it is compiled, into a tree of small reader objects: each record knows the
+ * reader position of every writer field in wire order, the fields to skip,
+ * and the defaults to fill in; each union knows the reader branch for every
+ * writer branch; type promotions and enum symbol mappings are fixed up front.
+ * Reading a message is then a straight walk of that tree over the raw binary
+ * decoder. The nodes are still called virtually, through call sites shared
+ * by all fields, so the gain comes from dropping the resolving decoder and
+ * its per-symbol grammar work, not from inlining across nodes.
+ * 
+ * The records built are the same as the interpretive reader builds: generated
+ * classes where they exist, generic records otherwise. Compiled readers are
+ * stateless and may be shared across threads.
+ * 
+ * @param <T>
+ *            The data type of the decoded object
+ */
+public final class CompiledDatumReader<T> implements DatumReader<T> {
+
+	/**
+	 * Reads one value of a resolved schema
+	 */
+	abstract static class Reader {
+		abstract Object read(Object reuse, Decoder in) throws IOException;
+	}
+
+	/**
+	 * Skips one value of a writer schema that the reader does not want
+	 */
+	abstract static class Skipper {
+		abstract void skip(Decoder in) throws IOException;
+	}
+
+	private static final String JAVA_STRING_PROP = "avro.java.string";
+
+	private static final SpecificData data = SpecificData.get();
+
+	private final Schema writerSchema;
+	private final Schema readerSchema;
+	private final Reader root;
+
+	private CompiledDatumReader(Schema writerSchema, Schema readerSchema,
+			Reader root) {
+		this.writerSchema = writerSchema;
+		this.readerSchema = readerSchema;
+		this.root = root;
+	}
+
+	/**
+	 * Resolves a writer schema against a reader schema and builds the
+	 * specialized reader for the pair.
+	 * 
+	 * @param <T>
+	 *            The data type of the decoded object
+	 * @param writerSchema
+	 *            The schema that was used to write the messages
+	 * @param readerSchema
+	 *            The expected schema for the messages
+	 * @return the compiled reader
+	 * @throws AvroTypeException
+	 *             If data written with writerSchema can never be read as
+	 *             readerSchema
+	 */
+	public static <T> CompiledDatumReader<T> compile(Schema writerSchema,
+			Schema readerSchema) {
+		Compiler compiler = new Compiler();
+		Reader root = compiler.reader(
+				Schema.applyAliases(writerSchema, readerSchema), readerSchema);
+		return new CompiledDatumReader<T>(writerSchema, readerSchema, root);
+	}
+
+	/**
+	 * @return The schema that was used to write the messages
+	 */
+	public Schema getWriterSchema() {
+		return writerSchema;
+	}
+
+	/**
+	 * @return The expected schema for the messages
+	 */
+	public Schema getReaderSchema() {
+		return readerSchema;
+	}
+
+	/**
+	 * The schemas are fixed when the reader is compiled.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	public void setSchema(Schema schema) {
+		throw new UnsupportedOperationException(
+				"Compiled readers are bound to their schemas");
+	}
+
+	@SuppressWarnings("unchecked")
+	public T read(T reuse, Decoder in) throws IOException {
+		return (T) root.read(reuse, in);
+	}
+
+	/**
+	 * Builds the reader tree. Records are memoized by schema pair before their
+	 * fields are compiled, so recursive schemas compile to cyclic trees.
+	 */
+	private static final class Compiler {
+
+		private final Map<DatumCache.SchemaPair, RecordReader> records = new HashMap<DatumCache.SchemaPair, RecordReader>();
+		private final Map<Schema, RecordSkipper> skippedRecords = new IdentityHashMap<Schema, RecordSkipper>();
+
+		Reader reader(Schema writer, Schema reader) {
+			Schema.Type writerType = writer.getType();
+			Schema.Type readerType = reader.getType();
+			if (writerType == Schema.Type.UNION) {
+				List<Schema> branches = writer.getTypes();
+				Reader[] readers = new Reader[branches.size()];
+				for (int i = 0; i < readers.length; i++) {
+					readers[i] = branchReader(branches.get(i), reader);
+				}
+				return new UnionReader(readers);
+			}
+			if (readerType == Schema.Type.UNION) {
+				int branch = bestBranch(reader, writer);
+				if (branch < 0) {
+					throw mismatch(writer, reader);
+				}
+				return reader(writer, reader.getTypes().get(branch));
+			}
+			if (writerType != readerType) {
+				return promotion(writer, reader);
+			}
+			switch (readerType) {
+			case NULL:
+				return NULL_READER;
+			case BOOLEAN:
+				return BOOLEAN_READER;
+			case INT:
+				return INT_READER;
+			case LONG:
+				return LONG_READER;
+			case FLOAT:
+				return FLOAT_READER;
+			case DOUBLE:
+				return DOUBLE_READER;
+			case STRING:
+				return isJavaString(reader) ? JAVA_STRING_READER
+						: STRING_READER;
+			case BYTES:
+				return BYTES_READER;
+			case FIXED:
+				if (!sameName(writer, reader)
+						|| writer.getFixedSize() != reader.getFixedSize()) {
+					throw mismatch(writer, reader);
+				}
+				return new FixedReader(reader);
+			case ENUM:
+				if (!sameName(writer, reader)) {
+					throw mismatch(writer, reader);
+				}
+				return new EnumReader(writer, reader);
+			case ARRAY:
+				return new ArrayReader(reader, reader(writer.getElementType(),
+						reader.getElementType()));
+			case MAP:
+				return new MapReader(isJavaString(reader), reader(
+						writer.getValueType(), reader.getValueType()));
+			case RECORD:
+				return record(writer, reader);
+			default:
+				throw mismatch(writer, reader);
+			}
+		}
+
+		/**
+		 * A writer union branch the reader cannot take only fails when a
+		 * message actually uses it, as with the interpretive reader.
+		 */
+		private Reader branchReader(Schema writer, Schema reader) {
+			try {
+				return reader(writer, reader);
+			} catch (AvroTypeException e) {
+				final String message = e.getMessage();
+				return new Reader() {
+					@Override
+					Object read(Object reuse, Decoder in) {
+						throw new AvroTypeException(message);
+					}
+				};
+			}
+		}
+
+		private Reader promotion(Schema writer, Schema reader) {
+			Schema.Type readerType = reader.getType();
+			switch (writer.getType()) {
+			case INT:
+				if (readerType == Schema.Type.LONG) {
+					return INT_LONG_READER;
+				} else if (readerType == Schema.Type.FLOAT) {
+					return INT_FLOAT_READER;
+				} else if (readerType == Schema.Type.DOUBLE) {
+					return INT_DOUBLE_READER;
+				}
+				break;
+			case LONG:
+				if (readerType == Schema.Type.FLOAT) {
+					return LONG_FLOAT_READER;
+				} else if (readerType == Schema.Type.DOUBLE) {
+					return LONG_DOUBLE_READER;
+				}
+				break;
+			case FLOAT:
+				if (readerType == Schema.Type.DOUBLE) {
+					return FLOAT_DOUBLE_READER;
+				}
+				break;
+			}
+			throw mismatch(writer, reader);
+		}
+
+		private Reader record(Schema writer, Schema reader) {
+			DatumCache.SchemaPair key = new DatumCache.SchemaPair(writer,
+					reader);
+			RecordReader record = records.get(key);
+			if (record != null) {
+				return record;
+			}
+			record = new RecordReader(reader);
+			records.put(key, record);
+
+			List<Schema.Field> writerFields = writer.getFields();
+			int count = writerFields.size();
+			record.positions = new int[count];
+			record.readers = new Reader[count];
+			record.skippers = new Skipper[count];
+			for (int i = 0; i < count; i++) {
+				Schema.Field writerField = writerFields.get(i);
+				Schema.Field readerField = reader.getField(writerField.name());
+				if (readerField == null) {
+					record.positions[i] = -1;
+					record.skippers[i] = skipper(writerField.schema());
+				} else {
+					record.positions[i] = readerField.pos();
+					record.readers[i] = reader(writerField.schema(),
+							readerField.schema());
+				}
+			}
+
+			int defaults = 0;
+			for (Schema.Field readerField : reader.getFields()) {
+				if (writer.getField(readerField.name()) == null) {
+					defaults++;
+				}
+			}
+			record.defaultPositions = new int[defaults];
+			record.defaultSchemas = new Schema[defaults];
+			record.defaultValues = new Object[defaults];
+			int d = 0;
+			for (Schema.Field readerField : reader.getFields()) {
+				if (writer.getField(readerField.name()) == null) {
+					record.defaultPositions[d] = readerField.pos();
+					record.defaultSchemas[d] = readerField.schema();
+					record.defaultValues[d] = defaultValue(reader, readerField);
+					d++;
+				}
+			}
+			return record;
+		}
+
+		/**
+		 * Decodes a field default once, the same way the resolving decoder
+		 * does for every message; each message then gets its own copy.
+		 */
+		private Object defaultValue(Schema record, Schema.Field field) {
+			if (field.defaultValue() == null) {
+				throw new AvroTypeException("No default value for "
+						+ field.name() + " in " + record.getFullName());
+			}
+			try {
+				ReusableByteArrayOutputStream out = new ReusableByteArrayOutputStream(
+						64);
+				Encoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+				ResolvingGrammarGenerator.encode(encoder, field.schema(),
+						field.defaultValue());
+				encoder.flush();
+				return new SpecificDatumReader<Object>(field.schema()).read(
+						null, DecoderFactory.get().binaryDecoder(
+								out.getBuffer(), 0, out.size(), null));
+			} catch (IOException e) {
+				throw new AvroTypeException("Invalid default value for "
+						+ field.name() + " in " + record.getFullName() + ": "
+						+ e.getMessage());
+			}
+		}
+
+		Skipper skipper(Schema writer) {
+			switch (writer.getType()) {
+			case NULL:
+				return NULL_SKIPPER;
+			case BOOLEAN:
+				return BOOLEAN_SKIPPER;
+			case INT:
+				return INT_SKIPPER;
+			case LONG:
+				return LONG_SKIPPER;
+			case FLOAT:
+				return FLOAT_SKIPPER;
+			case DOUBLE:
+				return DOUBLE_SKIPPER;
+			case STRING:
+				return STRING_SKIPPER;
+			case BYTES:
+				return BYTES_SKIPPER;
+			case ENUM:
+				return ENUM_SKIPPER;
+			case FIXED:
+				final int size = writer.getFixedSize();
+				return new Skipper() {
+					@Override
+					void skip(Decoder in) throws IOException {
+						in.skipFixed(size);
+					}
+				};
+			case ARRAY:
+				final Skipper element = skipper(writer.getElementType());
+				return new Skipper() {
+					@Override
+					void skip(Decoder in) throws IOException {
+						for (long n = in.skipArray(); n != 0; n = in
+								.skipArray()) {
+							for (long i = 0; i < n; i++) {
+								element.skip(in);
+							}
+						}
+					}
+				};
+			case MAP:
+				final Skipper value = skipper(writer.getValueType());
+				return new Skipper() {
+					@Override
+					void skip(Decoder in) throws IOException {
+						for (long n = in.skipMap(); n != 0; n = in.skipMap()) {
+							for (long i = 0; i < n; i++) {
+								in.skipString();
+								value.skip(in);
+							}
+						}
+					}
+				};
+			case UNION:
+				List<Schema> types = writer.getTypes();
+				final Skipper[] branches = new Skipper[types.size()];
+				for (int i = 0; i < branches.length; i++) {
+					branches[i] = skipper(types.get(i));
+				}
+				return new Skipper() {
+					@Override
+					void skip(Decoder in) throws IOException {
+						branches[in.readIndex()].skip(in);
+					}
+				};
+			case RECORD:
+				RecordSkipper record = skippedRecords.get(writer);
+				if (record == null) {
+					record = new RecordSkipper();
+					skippedRecords.put(writer, record);
+					List<Schema.Field> fields = writer.getFields();
+					record.fields = new Skipper[fields.size()];
+					for (int i = 0; i < record.fields.length; i++) {
+						record.fields[i] = skipper(fields.get(i).schema());
+					}
+				}
+				return record;
+			default:
+				throw new AvroTypeException("Unknown type " + writer);
+			}
+		}
+	}
+
+	/**
+	 * Picks the reader union branch for a writer value: the same type (and
+	 * name, for named types) first, then a numeric promotion.
+	 */
+	private static int bestBranch(Schema union, Schema writer) {
+		Schema.Type type = writer.getType();
+		List<Schema> branches = union.getTypes();
+		for (int i = 0; i < branches.size(); i++) {
+			Schema branch = branches.get(i);
+			if (branch.getType() == type) {
+				if (type == Schema.Type.RECORD || type == Schema.Type.ENUM
+						|| type == Schema.Type.FIXED) {
+					if (sameName(writer, branch)) {
+						return i;
+					}
+				} else {
+					return i;
+				}
+			}
+		}
+		for (int i = 0; i < branches.size(); i++) {
+			Schema.Type branchType = branches.get(i).getType();
+			switch (type) {
+			case INT:
+				if (branchType == Schema.Type.LONG
+						|| branchType == Schema.Type.DOUBLE) {
+					return i;
+				}
+				break;
+			case LONG:
+			case FLOAT:
+				if (branchType == Schema.Type.DOUBLE) {
+					return i;
+				}
+				break;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean sameName(Schema writer, Schema reader) {
+		String name = writer.getFullName();
+		return name == null ? reader.getFullName() == null : name
+				.equals(reader.getFullName());
+	}
+
+	private static boolean isJavaString(Schema schema) {
+		return "String".equals(schema.getProp(JAVA_STRING_PROP));
+	}
+
+	private static AvroTypeException mismatch(Schema writer, Schema reader) {
+		return new AvroTypeException("Found " + writer.getFullName()
+				+ ", expecting " + reader.getFullName());
+	}
+
+	private static final class RecordReader extends Reader {
+
+		private final Schema schema;
+
+		/**
+		 * Per writer field, in wire order: the reader position and reader,
+		 * or -1 and the skipper for fields the reader does not have
+		 */
+		int[] positions;
+		Reader[] readers;
+		Skipper[] skippers;
+
+		/**
+		 * Reader fields missing from the writer, filled from their defaults
+		 */
+		int[] defaultPositions;
+		Schema[] defaultSchemas;
+		Object[] defaultValues;
+
+		RecordReader(Schema schema) {
+			this.schema = schema;
+		}
+
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			Object datum = data.newRecord(reuse, schema);
+			IndexedRecord record = (IndexedRecord) datum;
+			boolean reused = datum == reuse;
+			for (int i = 0; i < positions.length; i++) {
+				int pos = positions[i];
+				if (pos < 0) {
+					skippers[i].skip(in);
+				} else {
+					record.put(pos, readers[i].read(
+							reused ? record.get(pos) : null, in));
+				}
+			}
+			for (int i = 0; i < defaultPositions.length; i++) {
+				record.put(defaultPositions[i], copy(defaultSchemas[i],
+						defaultValues[i]));
+			}
+			return datum;
+		}
+
+		private static Object copy(Schema schema, Object value) {
+			switch (schema.getType()) {
+			case NULL:
+			case BOOLEAN:
+			case INT:
+			case LONG:
+			case FLOAT:
+			case DOUBLE:
+				return value;
+			default:
+				return data.deepCopy(schema, value);
+			}
+		}
+	}
+
+	private static final class RecordSkipper extends Skipper {
+
+		Skipper[] fields;
+
+		@Override
+		void skip(Decoder in) throws IOException {
+			for (int i = 0; i < fields.length; i++) {
+				fields[i].skip(in);
+			}
+		}
+	}
+
+	private static final class UnionReader extends Reader {
+
+		private final Reader[] branches;
+
+		UnionReader(Reader[] branches) {
+			this.branches = branches;
+		}
+
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return branches[in.readIndex()].read(reuse, in);
+		}
+	}
+
+	private static final class ArrayReader extends Reader {
+
+		private final Schema schema;
+		private final Reader element;
+
+		ArrayReader(Schema schema, Reader element) {
+			this.schema = schema;
+			this.element = element;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		Object read(Object reuse, Decoder in) throws IOException {
+			long n = in.readArrayStart();
+			Collection<Object> array;
+			if (reuse instanceof Collection) {
+				array = (Collection<Object>) reuse;
+				array.clear();
+			} else {
+				array = new GenericData.Array<Object>((int) n, schema);
+			}
+			GenericData.Array<Object> generic = (array instanceof GenericData.Array) ? (GenericData.Array<Object>) array
+					: null;
+			while (n > 0) {
+				for (long i = 0; i < n; i++) {
+					array.add(element.read(generic != null ? generic.peek()
+							: null, in));
+				}
+				n = in.arrayNext();
+			}
+			return array;
+		}
+	}
+
+	private static final class MapReader extends Reader {
+
+		private final boolean javaStringKeys;
+		private final Reader value;
+
+		MapReader(boolean javaStringKeys, Reader value) {
+			this.javaStringKeys = javaStringKeys;
+			this.value = value;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		Object read(Object reuse, Decoder in) throws IOException {
+			long n = in.readMapStart();
+			Map<Object, Object> map;
+			if (reuse instanceof Map) {
+				map = (Map<Object, Object>) reuse;
+				map.clear();
+			} else {
+				map = new HashMap<Object, Object>((int) n);
+			}
+			while (n > 0) {
+				for (long i = 0; i < n; i++) {
+					Object key = javaStringKeys ? in.readString() : in
+							.readString(null);
+					map.put(key, value.read(null, in));
+				}
+				n = in.mapNext();
+			}
+			return map;
+		}
+	}
+
+	private static final class EnumReader extends Reader {
+
+		/**
+		 * Reader enum value for every writer ordinal, or null for symbols
+		 * the reader does not have
+		 */
+		private final Object[] values;
+		private final Schema reader;
+
+		EnumReader(Schema writer, Schema reader) {
+			this.reader = reader;
+			List<String> symbols = writer.getEnumSymbols();
+			values = new Object[symbols.size()];
+			Class<?> enumClass = data.getClass(reader);
+			for (int i = 0; i < values.length; i++) {
+				String symbol = symbols.get(i);
+				if (reader.hasEnumSymbol(symbol)) {
+					values[i] = createEnum(enumClass, symbol, reader);
+				}
+			}
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static Object createEnum(Class<?> enumClass, String symbol,
+				Schema schema) {
+			if (enumClass != null && enumClass.isEnum()) {
+				return Enum.valueOf((Class) enumClass, symbol);
+			}
+			return new GenericData.EnumSymbol(schema, symbol);
+		}
+
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			int index = in.readEnum();
+			Object value = index < values.length ? values[index] : null;
+			if (value == null) {
+				throw new AvroTypeException("No match for enum index " + index
+						+ " in " + reader.getFullName());
+			}
+			return value;
+		}
+	}
+
+	private static final class FixedReader extends Reader {
+
+		private final Schema schema;
+		private final int size;
+
+		FixedReader(Schema schema) {
+			this.schema = schema;
+			this.size = schema.getFixedSize();
+		}
+
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			Object fixed = data.createFixed(reuse, schema);
+			in.readFixed(((GenericFixed) fixed).bytes(), 0, size);
+			return fixed;
+		}
+	}
+
+	private static final Reader NULL_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			in.readNull();
+			return null;
+		}
+	};
+
+	private static final Reader BOOLEAN_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Boolean.valueOf(in.readBoolean());
+		}
+	};
+
+	private static final Reader INT_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Integer.valueOf(in.readInt());
+		}
+	};
+
+	private static final Reader INT_LONG_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Long.valueOf(in.readInt());
+		}
+	};
+
+	private static final Reader INT_FLOAT_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Float.valueOf(in.readInt());
+		}
+	};
+
+	private static final Reader INT_DOUBLE_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Double.valueOf(in.readInt());
+		}
+	};
+
+	private static final Reader LONG_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Long.valueOf(in.readLong());
+		}
+	};
+
+	private static final Reader LONG_FLOAT_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Float.valueOf(in.readLong());
+		}
+	};
+
+	private static final Reader LONG_DOUBLE_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Double.valueOf(in.readLong());
+		}
+	};
+
+	private static final Reader FLOAT_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Float.valueOf(in.readFloat());
+		}
+	};
+
+	private static final Reader FLOAT_DOUBLE_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Double.valueOf(in.readFloat());
+		}
+	};
+
+	private static final Reader DOUBLE_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return Double.valueOf(in.readDouble());
+		}
+	};
+
+	private static final Reader STRING_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return in.readString(reuse instanceof Utf8 ? (Utf8) reuse : null);
+		}
+	};
+
+	private static final Reader JAVA_STRING_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return in.readString();
+		}
+	};
+
+	private static final Reader BYTES_READER = new Reader() {
+		@Override
+		Object read(Object reuse, Decoder in) throws IOException {
+			return in.readBytes(reuse instanceof ByteBuffer ? (ByteBuffer) reuse
+					: null);
+		}
+	};
+
+	private static final Skipper NULL_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.readNull();
+		}
+	};
+
+	private static final Skipper BOOLEAN_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.readBoolean();
+		}
+	};
+
+	private static final Skipper INT_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.readInt();
+		}
+	};
+
+	private static final Skipper LONG_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.readLong();
+		}
+	};
+
+	private static final Skipper FLOAT_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.skipFixed(4);
+		}
+	};
+
+	private static final Skipper DOUBLE_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.skipFixed(8);
+		}
+	};
+
+	private static final Skipper STRING_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.skipString();
+		}
+	};
+
+	private static final Skipper BYTES_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.skipBytes();
+		}
+	};
+
+	private static final Skipper ENUM_SKIPPER = new Skipper() {
+		@Override
+		void skip(Decoder in) throws IOException {
+			in.readEnum();
+		}
+	};
+}
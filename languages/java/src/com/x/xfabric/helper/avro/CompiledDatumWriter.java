@@ -0,0 +1,339 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+/**
+ * A datum writer specialized for one schema, the counterpart of
+ * {@link CompiledDatumReader}. The schema is walked once, when the writer is
+ * compiled, into a tree of small writer objects, so writing a message no
+ * longer switches on schema types for every value. As with the reader, the
+ * nodes are called virtually through shared call sites. Nullable unions, the
+ * common case, pick their branch with a null check instead of a union
+ * resolution.
+ * 
+ * It accepts the same objects as {@link SpecificDatumWriter} and writes the
+ * same bytes. Compiled writers are stateless and may be shared across
+ * threads.
+ * 
+ * @param <T>
+ *            The data type of the encoded object
+ */
+public final class CompiledDatumWriter<T> implements DatumWriter<T> {
+
+	/**
+	 * Writes one value of a schema
+	 */
+	abstract static class Writer {
+		abstract void write(Object datum, Encoder out) throws IOException;
+	}
+
+	private static final SpecificData data = SpecificData.get();
+
+	private final Schema schema;
+	private final Writer root;
+
+	private CompiledDatumWriter(Schema schema, Writer root) {
+		this.schema = schema;
+		this.root = root;
+	}
+
+	/**
+	 * Builds the specialized writer for a schema.
+	 * 
+	 * @param <T>
+	 *            The data type of the encoded object
+	 * @param schema
+	 *            The schema to write with
+	 * @return the compiled writer
+	 */
+	public static <T> CompiledDatumWriter<T> compile(Schema schema) {
+		return new CompiledDatumWriter<T>(schema,
+				new Compiler().writer(schema));
+	}
+
+	/**
+	 * @return The schema written by this writer
+	 */
+	public Schema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * The schema is fixed when the writer is compiled.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	public void setSchema(Schema schema) {
+		throw new UnsupportedOperationException(
+				"Compiled writers are bound to their schema");
+	}
+
+	public void write(T datum, Encoder out) throws IOException {
+		try {
+			root.write(datum, out);
+		} catch (NullPointerException e) {
+			throw npe(e, " of " + schema.getFullName());
+		}
+	}
+
+	/**
+	 * Adds the location of a null value to the exception, in the same words
+	 * as the interpretive writer.
+	 */
+	private static NullPointerException npe(NullPointerException e,
+			String where) {
+		NullPointerException result = new NullPointerException(
+				e.getMessage() + where);
+		result.initCause(e.getCause() == null ? e : e.getCause());
+		return result;
+	}
+
+	private static final class Compiler {
+
+		private final Map<Schema, RecordWriter> records = new IdentityHashMap<Schema, RecordWriter>();
+
+		Writer writer(Schema schema) {
+			switch (schema.getType()) {
+			case NULL:
+				return NULL_WRITER;
+			case BOOLEAN:
+				return BOOLEAN_WRITER;
+			case INT:
+				return INT_WRITER;
+			case LONG:
+				return LONG_WRITER;
+			case FLOAT:
+				return FLOAT_WRITER;
+			case DOUBLE:
+				return DOUBLE_WRITER;
+			case STRING:
+				return STRING_WRITER;
+			case BYTES:
+				return BYTES_WRITER;
+			case FIXED:
+				final int size = schema.getFixedSize();
+				return new Writer() {
+					@Override
+					void write(Object datum, Encoder out) throws IOException {
+						out.writeFixed(((GenericFixed) datum).bytes(), 0, size);
+					}
+				};
+			case ENUM:
+				final Schema enumSchema = schema;
+				return new Writer() {
+					@Override
+					void write(Object datum, Encoder out) throws IOException {
+						if (datum instanceof Enum) {
+							out.writeEnum(((Enum<?>) datum).ordinal());
+						} else {
+							out.writeEnum(enumSchema.getEnumOrdinal(datum
+									.toString()));
+						}
+					}
+				};
+			case ARRAY:
+				final Writer element = writer(schema.getElementType());
+				return new Writer() {
+					@Override
+					void write(Object datum, Encoder out) throws IOException {
+						Collection<?> array = (Collection<?>) datum;
+						out.writeArrayStart();
+						out.setItemCount(array.size());
+						for (Object item : array) {
+							out.startItem();
+							element.write(item, out);
+						}
+						out.writeArrayEnd();
+					}
+				};
+			case MAP:
+				final Writer value = writer(schema.getValueType());
+				return new Writer() {
+					@Override
+					void write(Object datum, Encoder out) throws IOException {
+						Map<?, ?> map = (Map<?, ?>) datum;
+						out.writeMapStart();
+						out.setItemCount(map.size());
+						for (Map.Entry<?, ?> entry : map.entrySet()) {
+							out.startItem();
+							out.writeString((CharSequence) entry.getKey());
+							value.write(entry.getValue(), out);
+						}
+						out.writeMapEnd();
+					}
+				};
+			case UNION:
+				return union(schema);
+			case RECORD:
+				return record(schema);
+			default:
+				throw new IllegalArgumentException("Unknown type " + schema);
+			}
+		}
+
+		private Writer union(final Schema schema) {
+			List<Schema> types = schema.getTypes();
+			final Writer[] branches = new Writer[types.size()];
+			for (int i = 0; i < branches.length; i++) {
+				branches[i] = writer(types.get(i));
+			}
+			if (branches.length == 2
+					&& (types.get(0).getType() == Schema.Type.NULL || types
+							.get(1).getType() == Schema.Type.NULL)) {
+				final int nullIndex = types.get(0).getType() == Schema.Type.NULL ? 0
+						: 1;
+				final int valueIndex = 1 - nullIndex;
+				final Writer valueWriter = branches[valueIndex];
+				return new Writer() {
+					@Override
+					void write(Object datum, Encoder out) throws IOException {
+						if (datum == null) {
+							out.writeIndex(nullIndex);
+							out.writeNull();
+						} else {
+							out.writeIndex(valueIndex);
+							valueWriter.write(datum, out);
+						}
+					}
+				};
+			}
+			return new Writer() {
+				@Override
+				void write(Object datum, Encoder out) throws IOException {
+					int index = data.resolveUnion(schema, datum);
+					out.writeIndex(index);
+					branches[index].write(datum, out);
+				}
+			};
+		}
+
+		private Writer record(Schema schema) {
+			RecordWriter record = records.get(schema);
+			if (record != null) {
+				return record;
+			}
+			record = new RecordWriter();
+			records.put(schema, record);
+			List<Schema.Field> fields = schema.getFields();
+			record.fields = new Writer[fields.size()];
+			record.locations = new String[fields.size()];
+			for (int i = 0; i < record.fields.length; i++) {
+				Schema.Field field = fields.get(i);
+				record.fields[i] = writer(field.schema());
+				record.locations[i] = " of " + field.schema().getFullName()
+						+ " in field " + field.name();
+			}
+			return record;
+		}
+	}
+
+	private static final class RecordWriter extends Writer {
+
+		Writer[] fields;
+		String[] locations;
+
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			IndexedRecord record = (IndexedRecord) datum;
+			for (int i = 0; i < fields.length; i++) {
+				try {
+					fields[i].write(record.get(i), out);
+				} catch (NullPointerException e) {
+					throw npe(e, locations[i]);
+				}
+			}
+		}
+	}
+
+	private static final Writer NULL_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeNull();
+		}
+	};
+
+	private static final Writer BOOLEAN_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeBoolean(((Boolean) datum).booleanValue());
+		}
+	};
+
+	private static final Writer INT_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeInt(((Number) datum).intValue());
+		}
+	};
+
+	private static final Writer LONG_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeLong(((Long) datum).longValue());
+		}
+	};
+
+	private static final Writer FLOAT_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeFloat(((Float) datum).floatValue());
+		}
+	};
+
+	private static final Writer DOUBLE_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeDouble(((Double) datum).doubleValue());
+		}
+	};
+
+	private static final Writer STRING_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeString((CharSequence) datum);
+		}
+	};
+
+	private static final Writer BYTES_WRITER = new Writer() {
+		@Override
+		void write(Object datum, Encoder out) throws IOException {
+			out.writeBytes((ByteBuffer) datum);
+		}
+	};
+}
@@ -0,0 +1,435 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+/**
+ * Bounded cache of ready-to-use datum readers and writers.
+ * 
+ * Readers are keyed by the (writer, reader) schema pair so that the schema
+ * resolution for a pair is computed once and then shared. Schemas are compared
+ * by identity, which matches how they are handed out by the SchemaCache.
+ * Pairs compiled ahead of time with {@link #precompile(Schema, Schema)} are
+ * also found by schema equality, so that a reader schema such as the SCHEMA$
+ * of a generated class gets the compiled reader too, and they do not count
+ * against the maximum number of entries. Cached readers and writers are
+ * stateless between calls and may be shared across threads.
+ * 
+ * Optionally, schemas that see enough traffic are compiled: once a schema
+ * pair has been decoded, or a schema encoded, more than the compile
+ * threshold times, {@link #getDatumReader(Schema, Schema)} and
+ * {@link #getDatumWriter(Schema)} return a {@link CompiledDatumReader} or
+ * {@link CompiledDatumWriter} specialized for it. Schemas that fail to
+ * compile keep using the interpretive reader or writer.
+ */
+public class DatumCache {
+
+	/**
+	 * Default maximum number of readers and writers kept by the cache
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	/**
+	 * Compile threshold that turns compilation off, the default
+	 */
+	public static final long COMPILE_DISABLED = -1;
+
+	static final class SchemaPair {
+
+		private final Schema writer;
+		private final Schema reader;
+
+		SchemaPair(Schema writer, Schema reader) {
+			this.writer = writer;
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof SchemaPair))
+				return false;
+			SchemaPair pair = (SchemaPair) object;
+			return this.writer == pair.writer && this.reader == pair.reader;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(writer)
+					+ System.identityHashCode(reader);
+		}
+	}
+
+	/**
+	 * Schema pair compared by schema equality rather than identity. Schemas
+	 * cache their hash code, so lookups only pay for the equality check.
+	 */
+	static final class EqualSchemaPair {
+
+		private final Schema writer;
+		private final Schema reader;
+
+		EqualSchemaPair(Schema writer, Schema reader) {
+			this.writer = writer;
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof EqualSchemaPair))
+				return false;
+			EqualSchemaPair pair = (EqualSchemaPair) object;
+			return this.writer.equals(pair.writer)
+					&& this.reader.equals(pair.reader);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * writer.hashCode() + reader.hashCode();
+		}
+	}
+
+	/**
+	 * A cached reader, with its use count and, once it has been compiled,
+	 * the compiled reader. A failed compilation leaves the interpretive
+	 * reader in its place.
+	 */
+	private final class ReaderEntry {
+
+		final SpecificDatumReader<?> reader;
+		final AtomicLong uses = new AtomicLong();
+		volatile DatumReader<?> compiled;
+
+		ReaderEntry(SpecificDatumReader<?> reader) {
+			this.reader = reader;
+		}
+
+		synchronized DatumReader<?> compile(Schema writerSchema,
+				Schema readerSchema) {
+			if (compiled == null) {
+				try {
+					compiled = CompiledDatumReader.compile(writerSchema,
+							readerSchema);
+					compiledCount.incrementAndGet();
+				} catch (RuntimeException e) {
+					compiled = reader;
+					compileFailures.incrementAndGet();
+				}
+			}
+			return compiled;
+		}
+
+		synchronized void setCompiled(DatumReader<?> reader) {
+			if (compiled == null) {
+				compiled = reader;
+				compiledCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * The writer counterpart of ReaderEntry
+	 */
+	private final class WriterEntry {
+
+		final SpecificDatumWriter<?> writer;
+		final AtomicLong uses = new AtomicLong();
+		volatile DatumWriter<?> compiled;
+
+		WriterEntry(SpecificDatumWriter<?> writer) {
+			this.writer = writer;
+		}
+
+		synchronized DatumWriter<?> compile(Schema schema) {
+			if (compiled == null) {
+				try {
+					compiled = CompiledDatumWriter.compile(schema);
+					compiledCount.incrementAndGet();
+				} catch (RuntimeException e) {
+					compiled = writer;
+					compileFailures.incrementAndGet();
+				}
+			}
+			return compiled;
+		}
+	}
+
+	private final int maxEntries;
+	private final ConcurrentMap<SchemaPair, ReaderEntry> readers = new ConcurrentHashMap<SchemaPair, ReaderEntry>();
+	private final ConcurrentMap<EqualSchemaPair, ReaderEntry> precompiled = new ConcurrentHashMap<EqualSchemaPair, ReaderEntry>();
+	private final ConcurrentMap<Schema, WriterEntry> writers = new ConcurrentHashMap<Schema, WriterEntry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong compiledCount = new AtomicLong();
+	private final AtomicLong compileFailures = new AtomicLong();
+	private volatile long compileThreshold = COMPILE_DISABLED;
+
+	public DatumCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of readers, and separately of writers, to keep
+	 *            besides the precompiled readers
+	 */
+	public DatumCache(int maxEntries) {
+		if (maxEntries <= 0) {
+			throw new IllegalArgumentException("maxEntries must be positive");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param writerSchema
+	 *            The schema that was used to write the message
+	 * @param readerSchema
+	 *            The expected schema for the message
+	 * @return a reader resolving writerSchema to readerSchema
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> SpecificDatumReader<T> getReader(Schema writerSchema,
+			Schema readerSchema) {
+		return (SpecificDatumReader<T>) getReaderEntry(writerSchema,
+				readerSchema).reader;
+	}
+
+	/**
+	 * Like {@link #getReader(Schema, Schema)}, but returns the compiled
+	 * reader for the pair once it has been used more than the compile
+	 * threshold times.
+	 * 
+	 * @param writerSchema
+	 *            The schema that was used to write the message
+	 * @param readerSchema
+	 *            The expected schema for the message
+	 * @return a reader resolving writerSchema to readerSchema
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> DatumReader<T> getDatumReader(Schema writerSchema,
+			Schema readerSchema) {
+		ReaderEntry entry = getReaderEntry(writerSchema, readerSchema);
+		DatumReader<?> compiled = entry.compiled;
+		if (compiled != null) {
+			return (DatumReader<T>) compiled;
+		}
+		long threshold = compileThreshold;
+		if (threshold >= 0 && entry.uses.incrementAndGet() > threshold) {
+			return (DatumReader<T>) entry.compile(writerSchema, readerSchema);
+		}
+		return (DatumReader<T>) entry.reader;
+	}
+
+	/**
+	 * Compiles the reader for a schema pair now, whatever the compile
+	 * threshold, so that decoding the pair does not pay for schema
+	 * resolution on any thread, not even for its first message. The compiled
+	 * reader is kept until {@link #clear()}, and is also returned for schemas
+	 * equal to, but not the same instances as, writerSchema and readerSchema.
+	 * 
+	 * @param writerSchema
+	 *            The schema that was used to write the messages
+	 * @param readerSchema
+	 *            The expected schema for the messages
+	 * @throws AvroTypeException
+	 *             If data written with writerSchema can never be read as
+	 *             readerSchema; nothing is cached then
+	 */
+	public void precompile(Schema writerSchema, Schema readerSchema) {
+		DatumReader<?> compiled = CompiledDatumReader.compile(writerSchema,
+				readerSchema);
+		ReaderEntry entry = getReaderEntry(writerSchema, readerSchema);
+		entry.setCompiled(compiled);
+		precompiled.put(new EqualSchemaPair(writerSchema, readerSchema), entry);
+	}
+
+	private ReaderEntry getReaderEntry(Schema writerSchema,
+			Schema readerSchema) {
+		SchemaPair key = new SchemaPair(writerSchema, readerSchema);
+		ReaderEntry entry = readers.get(key);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		// precompiled pairs may also be looked up with other, equal schema
+		// instances; alias them so the next lookup takes the fast path
+		int limit = maxEntries + precompiled.size();
+		if (!precompiled.isEmpty()) {
+			entry = precompiled.get(new EqualSchemaPair(writerSchema,
+					readerSchema));
+			if (entry != null) {
+				hits.incrementAndGet();
+				makeRoom(readers, limit);
+				readers.putIfAbsent(key, entry);
+				return entry;
+			}
+		}
+		misses.incrementAndGet();
+		makeRoom(readers, limit);
+		entry = new ReaderEntry(new SpecificDatumReader<Object>(writerSchema,
+				readerSchema));
+		ReaderEntry existing = readers.putIfAbsent(key, entry);
+		return existing != null ? existing : entry;
+	}
+
+	/**
+	 * @param schema
+	 *            The schema to write with
+	 * @return a writer for the given schema
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> SpecificDatumWriter<T> getWriter(Schema schema) {
+		return (SpecificDatumWriter<T>) getWriterEntry(schema).writer;
+	}
+
+	/**
+	 * Like {@link #getWriter(Schema)}, but returns the compiled writer for
+	 * the schema once it has been used more than the compile threshold
+	 * times.
+	 * 
+	 * @param schema
+	 *            The schema to write with
+	 * @return a writer for the given schema
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> DatumWriter<T> getDatumWriter(Schema schema) {
+		WriterEntry entry = getWriterEntry(schema);
+		DatumWriter<?> compiled = entry.compiled;
+		if (compiled != null) {
+			return (DatumWriter<T>) compiled;
+		}
+		long threshold = compileThreshold;
+		if (threshold >= 0 && entry.uses.incrementAndGet() > threshold) {
+			return (DatumWriter<T>) entry.compile(schema);
+		}
+		return (DatumWriter<T>) entry.writer;
+	}
+
+	private WriterEntry getWriterEntry(Schema schema) {
+		WriterEntry entry = writers.get(schema);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+		makeRoom(writers, maxEntries);
+		entry = new WriterEntry(new SpecificDatumWriter<Object>(schema));
+		WriterEntry existing = writers.putIfAbsent(schema, entry);
+		return existing != null ? existing : entry;
+	}
+
+	/**
+	 * Sets how many times a schema pair must be decoded, or a schema
+	 * encoded, before it is compiled. Zero compiles on first use.
+	 * 
+	 * @param compileThreshold
+	 *            number of uses, or {@link #COMPILE_DISABLED} to always use
+	 *            the interpretive readers and writers
+	 */
+	public void setCompileThreshold(long compileThreshold) {
+		if (compileThreshold < COMPILE_DISABLED) {
+			throw new IllegalArgumentException(
+					"compileThreshold must not be negative");
+		}
+		this.compileThreshold = compileThreshold;
+	}
+
+	/**
+	 * @return number of uses before a schema is compiled, or
+	 *         {@link #COMPILE_DISABLED}
+	 */
+	public long getCompileThreshold() {
+		return compileThreshold;
+	}
+
+	/**
+	 * Evicts an arbitrary entry once the map is full. Schemas in use are
+	 * few and long lived, so anything smarter is not worth the bookkeeping.
+	 * The reader limit grows with the number of precompiled pairs, which
+	 * stay reachable through the precompiled map even when evicted here.
+	 */
+	private static void makeRoom(ConcurrentMap<?, ?> map, int limit) {
+		if (map.size() >= limit) {
+			Iterator<?> iter = map.keySet().iterator();
+			if (iter.hasNext()) {
+				iter.next();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of lookups served from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups that had to build a new reader or writer
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of readers and writers compiled so far
+	 */
+	public long getCompiledCount() {
+		return compiledCount.get();
+	}
+
+	/**
+	 * @return number of schemas that could not be compiled and kept using
+	 *         the interpretive reader or writer
+	 */
+	public long getCompileFailureCount() {
+		return compileFailures.get();
+	}
+
+	/**
+	 * @return number of readers and writers currently cached
+	 */
+	public int size() {
+		return readers.size() + writers.size();
+	}
+
+	/**
+	 * Drops all cached readers and writers. Counters are left untouched.
+	 */
+	public void clear() {
+		readers.clear();
+		precompiled.clear();
+		writers.clear();
+	}
+}
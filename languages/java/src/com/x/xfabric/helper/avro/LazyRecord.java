@@ -0,0 +1,276 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+
+/**
+ * Read-only view of a record in Avro binary, decoding fields only when they
+ * are read. The first access scans the payload as far as the field asked
+ * for, recording where each field starts, and skipping over values by
+ * length where the encoding allows. Each field is decoded on its first read
+ * and kept. Nested records and arrays are views as well, so the cost of
+ * reading a message is proportional to the part of it that is touched.
+ * 
+ * Fields are those of the writer schema; no schema resolution takes place.
+ * Values have the types the generic datum reader produces: Utf8 strings,
+ * GenericData.EnumSymbol and GenericData.Fixed, except that bytes are
+ * read-only ByteBuffers over the payload. The view holds on to the payload,
+ * which must not change while the view is used. Not safe for use from
+ * concurrent threads.
+ */
+public class LazyRecord implements GenericRecord {
+
+	private static final Object UNREAD = new Object();
+
+	private final Schema schema;
+	private final byte[] data;
+	private final int limit;
+	/**
+	 * start of each field scanned so far; fieldOffsets[scanned] is where the
+	 * next field starts
+	 */
+	private final int[] fieldOffsets;
+	private int scanned;
+	private final Object[] values;
+
+	/**
+	 * @param writerSchema
+	 *            record schema the payload was written with
+	 * @param data
+	 *            buffer holding the payload
+	 * @param offset
+	 *            start of the record in data
+	 * @param length
+	 *            length of the payload from offset
+	 */
+	public LazyRecord(Schema writerSchema, byte[] data, int offset, int length) {
+		if (writerSchema.getType() != Schema.Type.RECORD) {
+			throw new IllegalArgumentException("Not a record schema: "
+					+ writerSchema);
+		}
+		if (offset < 0 || length < 0 || length > data.length - offset) {
+			throw new IndexOutOfBoundsException("Region " + offset + "+"
+					+ length + " outside array of " + data.length);
+		}
+		int fieldCount = writerSchema.getFields().size();
+		this.schema = writerSchema;
+		this.data = data;
+		this.limit = offset + length;
+		this.fieldOffsets = new int[fieldCount + 1];
+		this.fieldOffsets[0] = offset;
+		this.values = new Object[fieldCount];
+		Arrays.fill(this.values, UNREAD);
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	public Object get(String key) {
+		Schema.Field field = schema.getField(key);
+		return (field != null) ? get(field.pos()) : null;
+	}
+
+	public Object get(int i) {
+		Object value = values[i];
+		if (value == UNREAD) {
+			BinaryCursor cursor = new BinaryCursor(data, fieldOffset(i), limit);
+			value = decode(schema.getFields().get(i).schema(), cursor);
+			values[i] = value;
+		}
+		return value;
+	}
+
+	public void put(String key, Object v) {
+		throw new UnsupportedOperationException("LazyRecord is read-only");
+	}
+
+	public void put(int i, Object v) {
+		throw new UnsupportedOperationException("LazyRecord is read-only");
+	}
+
+	/**
+	 * @return number of bytes the record takes up in the payload; scans any
+	 *         fields not scanned yet
+	 */
+	public int getEncodedLength() {
+		return fieldOffset(values.length) - fieldOffsets[0];
+	}
+
+	private int fieldOffset(int i) {
+		if (i > scanned) {
+			List<Schema.Field> fields = schema.getFields();
+			BinaryCursor cursor = new BinaryCursor(data, fieldOffsets[scanned],
+					limit);
+			while (scanned < i) {
+				cursor.skip(fields.get(scanned).schema());
+				fieldOffsets[++scanned] = cursor.pos;
+			}
+		}
+		return fieldOffsets[i];
+	}
+
+	@Override
+	public String toString() {
+		return GenericData.get().toString(this);
+	}
+
+	/**
+	 * Decodes the value at the cursor, returning views for records and arrays
+	 */
+	static Object decode(Schema schema, BinaryCursor cursor) {
+		switch (schema.getType()) {
+		case RECORD:
+			LazyRecord record = new LazyRecord(schema, cursor.data, cursor.pos,
+					cursor.limit - cursor.pos);
+			cursor.pos += record.getEncodedLength();
+			return record;
+		case ARRAY:
+			return new LazyArray(schema, cursor);
+		case MAP:
+			Map<Utf8, Object> map = new LinkedHashMap<Utf8, Object>();
+			Schema valueType = schema.getValueType();
+			for (long count = cursor.readLong(); count != 0; count = cursor
+					.readLong()) {
+				if (count < 0) {
+					count = -count;
+					cursor.readLong();
+				}
+				for (long i = 0; i < count; i++) {
+					Utf8 key = readUtf8(cursor);
+					map.put(key, decode(valueType, cursor));
+				}
+			}
+			return map;
+		case UNION:
+			return decode(schema.getTypes().get(cursor.readInt()), cursor);
+		case FIXED:
+			int size = schema.getFixedSize();
+			int start = cursor.pos;
+			cursor.skipBytes(size);
+			return new GenericData.Fixed(schema, Arrays.copyOfRange(
+					cursor.data, start, start + size));
+		case ENUM:
+			return new GenericData.EnumSymbol(schema, schema.getEnumSymbols()
+					.get(cursor.readInt()));
+		case STRING:
+			return readUtf8(cursor);
+		case BYTES:
+			int byteCount = cursor.readLength();
+			ByteBuffer bytes = ByteBuffer.wrap(cursor.data, cursor.pos,
+					byteCount).slice().asReadOnlyBuffer();
+			cursor.pos += byteCount;
+			return bytes;
+		case INT:
+			return cursor.readInt();
+		case LONG:
+			return cursor.readLong();
+		case FLOAT:
+			return cursor.readFloat();
+		case DOUBLE:
+			return cursor.readDouble();
+		case BOOLEAN:
+			return cursor.readBoolean();
+		case NULL:
+			return null;
+		default:
+			throw new AvroRuntimeException("Unsupported schema type "
+					+ schema.getType());
+		}
+	}
+
+	private static Utf8 readUtf8(BinaryCursor cursor) {
+		int length = cursor.readLength();
+		byte[] utf8 = Arrays.copyOfRange(cursor.data, cursor.pos, cursor.pos
+				+ length);
+		cursor.pos += length;
+		return new Utf8(utf8);
+	}
+
+	/**
+	 * Read-only view of an array in Avro binary. The element offsets are
+	 * indexed on creation, which also moves the cursor past the array;
+	 * elements are decoded on their first read.
+	 */
+	static final class LazyArray extends AbstractList<Object> {
+
+		private final Schema elementType;
+		private final byte[] data;
+		private final int limit;
+		private final int[] offsets;
+		private final Object[] elements;
+
+		LazyArray(Schema schema, BinaryCursor cursor) {
+			this.elementType = schema.getElementType();
+			this.data = cursor.data;
+			this.limit = cursor.limit;
+			int[] found = new int[8];
+			int size = 0;
+			for (long count = cursor.readLong(); count != 0; count = cursor
+					.readLong()) {
+				if (count < 0) {
+					count = -count;
+					cursor.readLong();
+				}
+				for (long i = 0; i < count; i++) {
+					if (size == found.length) {
+						found = Arrays.copyOf(found, 2 * size);
+					}
+					found[size++] = cursor.pos;
+					cursor.skip(elementType);
+				}
+			}
+			this.offsets = Arrays.copyOf(found, size);
+			this.elements = new Object[size];
+			Arrays.fill(this.elements, UNREAD);
+		}
+
+		@Override
+		public Object get(int index) {
+			Object element = elements[index];
+			if (element == UNREAD) {
+				element = decode(elementType, new BinaryCursor(data,
+						offsets[index], limit));
+				elements[index] = element;
+			}
+			return element;
+		}
+
+		@Override
+		public int size() {
+			return offsets.length;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Unsynchronized, growable byte array output stream meant to be kept and
+ * reused across messages. Unlike {@link java.io.ByteArrayOutputStream}, the
+ * internal buffer is exposed so that encoded bytes can be consumed without
+ * copying them.
+ */
+public class ReusableByteArrayOutputStream extends OutputStream {
+
+	private final int initialCapacity;
+	private final int maxRetainedCapacity;
+	private byte[] buf;
+	private int count;
+
+	public ReusableByteArrayOutputStream() {
+		this(4096);
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            initial size of the internal buffer
+	 */
+	public ReusableByteArrayOutputStream(int initialCapacity) {
+		this(initialCapacity, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            initial size of the internal buffer
+	 * @param maxRetainedCapacity
+	 *            largest buffer kept by {@link #reset()}; a bigger one is
+	 *            dropped for a new buffer of initialCapacity, so that one
+	 *            large message does not pin its buffer for good
+	 */
+	public ReusableByteArrayOutputStream(int initialCapacity,
+			int maxRetainedCapacity) {
+		this.initialCapacity = Math.max(initialCapacity, 16);
+		this.maxRetainedCapacity = maxRetainedCapacity;
+		this.buf = new byte[this.initialCapacity];
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > buf.length) {
+			int newCapacity = Math.max(buf.length << 1, minCapacity);
+			buf = Arrays.copyOf(buf, newCapacity);
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Discards the written bytes but keeps the internal buffer for reuse,
+	 * unless it grew beyond the maximum retained capacity
+	 */
+	public void reset() {
+		count = 0;
+		if (buf.length > maxRetainedCapacity) {
+			buf = new byte[initialCapacity];
+		}
+	}
+
+	/**
+	 * @return number of valid bytes in the buffer
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the internal buffer; only the first {@link #size()} bytes are
+	 *         valid. The array is replaced when the stream grows.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * @return a view over the valid bytes of the internal buffer, valid until
+	 *         the next write or reset
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+
+	/**
+	 * @return a copy of the valid bytes
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+}
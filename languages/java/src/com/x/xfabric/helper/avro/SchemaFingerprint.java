@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.avro.Schema;
+
+/**
+ * Computes Avro schema fingerprints: the 64-bit Rabin fingerprint
+ * (CRC-64-AVRO) of a schema's Parsing Canonical Form, as defined by the Avro
+ * specification. Two schemas have the same fingerprint when they describe the
+ * same binary encoding, regardless of docs, props, aliases or formatting.
+ * 
+ * The Avro version bundled with this library predates SchemaNormalization,
+ * so the canonical form is built here following the specification.
+ */
+public class SchemaFingerprint {
+
+	/** Fingerprint of the empty input, as fixed by the specification */
+	public static final long EMPTY = 0xc15d213aa4d7a795L;
+
+	private static final long[] FP_TABLE = new long[256];
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_CACHED = 1024;
+	private static final ConcurrentMap<Schema, Long> cache = new ConcurrentHashMap<Schema, Long>();
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			long fp = i;
+			for (int j = 0; j < 8; j++) {
+				fp = (fp >>> 1) ^ (EMPTY & -(fp & 1L));
+			}
+			FP_TABLE[i] = fp;
+		}
+	}
+
+	private SchemaFingerprint() {
+	}
+
+	/**
+	 * @param schema
+	 * @return the CRC-64-AVRO fingerprint of the schema's canonical form
+	 */
+	public static long fingerprint64(Schema schema) {
+		Long cached = cache.get(schema);
+		if (cached != null) {
+			return cached.longValue();
+		}
+		long fp = fingerprint64(parsingForm(schema).getBytes(UTF8));
+		if (cache.size() >= MAX_CACHED) {
+			cache.clear();
+		}
+		cache.put(schema, fp);
+		return fp;
+	}
+
+	/**
+	 * @param data
+	 * @return the CRC-64-AVRO fingerprint of data
+	 */
+	public static long fingerprint64(byte[] data) {
+		long fp = EMPTY;
+		for (byte b : data) {
+			fp = (fp >>> 8) ^ FP_TABLE[(int) (fp ^ b) & 0xff];
+		}
+		return fp;
+	}
+
+	/**
+	 * @param schema
+	 * @return the Parsing Canonical Form of the schema
+	 */
+	public static String parsingForm(Schema schema) {
+		StringBuilder out = new StringBuilder(256);
+		build(schema, new HashSet<String>(), out);
+		return out.toString();
+	}
+
+	private static void build(Schema s, Set<String> seen, StringBuilder o) {
+		switch (s.getType()) {
+		case UNION:
+			o.append('[');
+			boolean first = true;
+			for (Schema branch : s.getTypes()) {
+				if (!first) {
+					o.append(',');
+				}
+				build(branch, seen, o);
+				first = false;
+			}
+			o.append(']');
+			return;
+		case ARRAY:
+			o.append("{\"type\":\"array\",\"items\":");
+			build(s.getElementType(), seen, o);
+			o.append('}');
+			return;
+		case MAP:
+			o.append("{\"type\":\"map\",\"values\":");
+			build(s.getValueType(), seen, o);
+			o.append('}');
+			return;
+		case ENUM:
+		case FIXED:
+		case RECORD:
+			String name = s.getFullName();
+			if (!seen.add(name)) {
+				o.append('"').append(name).append('"');
+				return;
+			}
+			o.append("{\"name\":\"").append(name).append("\",\"type\":\"")
+					.append(s.getType().getName()).append('"');
+			if (s.getType() == Schema.Type.ENUM) {
+				o.append(",\"symbols\":[");
+				boolean firstSymbol = true;
+				for (String symbol : s.getEnumSymbols()) {
+					if (!firstSymbol) {
+						o.append(',');
+					}
+					o.append('"').append(symbol).append('"');
+					firstSymbol = false;
+				}
+				o.append(']');
+			} else if (s.getType() == Schema.Type.FIXED) {
+				o.append(",\"size\":").append(s.getFixedSize());
+			} else {
+				o.append(",\"fields\":[");
+				boolean firstField = true;
+				for (Schema.Field field : s.getFields()) {
+					if (!firstField) {
+						o.append(',');
+					}
+					o.append("{\"name\":\"").append(field.name())
+							.append("\",\"type\":");
+					build(field.schema(), seen, o);
+					o.append('}');
+					firstField = false;
+				}
+				o.append(']');
+			}
+			o.append('}');
+			return;
+		default:
+			o.append('"').append(s.getType().getName()).append('"');
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * A projection of a writer schema onto a few field paths, for handlers that
+ * only need some fields of a large message. The projected reader schema keeps
+ * just the selected fields, and the path down to them, so decoding builds
+ * only those; everything else is skipped by the resolving decoder, which
+ * jumps over strings, bytes and fixed values by their length instead of
+ * reading them.
+ * 
+ * Field paths are field names separated by dots, e.g. "price.amount". A path
+ * passes through arrays and maps to their elements and values, and through
+ * unions to their record branches. Projections are cached per writer schema
+ * and set of paths.
+ * 
+ * Projected records are always {@link GenericRecord}s, even when a generated
+ * class exists for the record, since that class expects all of its fields.
+ */
+public class SchemaProjection {
+
+	private static final int MAX_CACHED = 256;
+
+	private static final class Key {
+
+		private final Schema writerSchema;
+		private final String fieldPaths;
+
+		Key(Schema writerSchema, String fieldPaths) {
+			this.writerSchema = writerSchema;
+			this.fieldPaths = fieldPaths;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key))
+				return false;
+			Key key = (Key) object;
+			return this.writerSchema == key.writerSchema
+					&& this.fieldPaths.equals(key.fieldPaths);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(writerSchema)
+					+ fieldPaths.hashCode();
+		}
+	}
+
+	private static final ConcurrentMap<Key, SchemaProjection> cache = new ConcurrentHashMap<Key, SchemaProjection>();
+
+	private final Schema writerSchema;
+	private final Schema schema;
+	private final GenericDatumReader<GenericRecord> reader;
+
+	private SchemaProjection(Schema writerSchema, Schema schema) {
+		this.writerSchema = writerSchema;
+		this.schema = schema;
+		this.reader = new GenericDatumReader<GenericRecord>(writerSchema,
+				schema);
+	}
+
+	/**
+	 * @param writerSchema
+	 *            record schema the messages are written with
+	 * @param fieldPaths
+	 *            the fields to keep
+	 * @return the projection, from the cache if it was derived before
+	 * @throws IllegalArgumentException
+	 *             if a path does not name a field of the schema
+	 */
+	public static SchemaProjection of(Schema writerSchema,
+			String... fieldPaths) {
+		StringBuilder joined = new StringBuilder();
+		for (String path : fieldPaths) {
+			joined.append(path).append(',');
+		}
+		Key key = new Key(writerSchema, joined.toString());
+		SchemaProjection projection = cache.get(key);
+		if (projection == null) {
+			if (cache.size() >= MAX_CACHED) {
+				cache.clear();
+			}
+			projection = new SchemaProjection(writerSchema, project(
+					writerSchema, parsePaths(fieldPaths), ""));
+			SchemaProjection existing = cache.putIfAbsent(key, projection);
+			if (existing != null) {
+				projection = existing;
+			}
+		}
+		return projection;
+	}
+
+	/**
+	 * @return the projected reader schema
+	 */
+	public Schema getSchema() {
+		return schema;
+	}
+
+	public Schema getWriterSchema() {
+		return writerSchema;
+	}
+
+	/**
+	 * Decode the selected fields of a binary message held in a region of a
+	 * byte array.
+	 * 
+	 * @param data
+	 *            buffer holding the encoded message
+	 * @param offset
+	 *            start of the message in data
+	 * @param length
+	 *            length of the message
+	 * @return record of the projected schema
+	 * @throws IOException
+	 *             If there is a decoding error
+	 */
+	public GenericRecord decode(byte[] data, int offset, int length)
+			throws IOException {
+		return reader.read(null, AvroEncDecoder.getThreadDecoder(data, offset,
+				length));
+	}
+
+	/**
+	 * Decode the selected fields of a binary message read from a stream.
+	 * 
+	 * @param in
+	 *            stream positioned at the start of the message
+	 * @return record of the projected schema
+	 * @throws IOException
+	 *             If there is a decoding or read error
+	 */
+	public GenericRecord decode(InputStream in) throws IOException {
+		return reader.read(null, AvroEncDecoder.getThreadDecoder(in));
+	}
+
+	/**
+	 * Turns the paths into a tree of field names, where a null child selects
+	 * the whole field.
+	 */
+	private static Map<String, Object> parsePaths(String[] fieldPaths) {
+		if (fieldPaths.length == 0) {
+			throw new IllegalArgumentException("No field paths given");
+		}
+		Map<String, Object> root = new LinkedHashMap<String, Object>();
+		for (String path : fieldPaths) {
+			Map<String, Object> node = root;
+			String[] names = path.split("\\.");
+			for (int i = 0; i < names.length; i++) {
+				String name = names[i];
+				if (name.length() == 0) {
+					throw new IllegalArgumentException("Bad field path: "
+							+ path);
+				}
+				boolean last = i == names.length - 1;
+				if (node.containsKey(name) && node.get(name) == null) {
+					// the whole field is already selected
+					break;
+				}
+				if (last) {
+					node.put(name, null);
+				} else {
+					@SuppressWarnings("unchecked")
+					Map<String, Object> child = (Map<String, Object>) node
+							.get(name);
+					if (child == null) {
+						child = new LinkedHashMap<String, Object>();
+						node.put(name, child);
+					}
+					node = child;
+				}
+			}
+		}
+		return root;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Schema project(Schema schema, Map<String, Object> selected,
+			String path) {
+		switch (schema.getType()) {
+		case RECORD:
+			String prefix = (path.length() == 0) ? "" : path + ".";
+			List<Schema.Field> fields = new ArrayList<Schema.Field>();
+			for (Schema.Field field : schema.getFields()) {
+				if (!selected.containsKey(field.name())) {
+					continue;
+				}
+				Map<String, Object> child = (Map<String, Object>) selected
+						.get(field.name());
+				Schema fieldSchema = (child == null) ? field.schema()
+						: project(field.schema(), child, prefix + field.name());
+				fields.add(new Schema.Field(field.name(), fieldSchema, field
+						.doc(), field.defaultValue(), field.order()));
+			}
+			for (String name : selected.keySet()) {
+				if (schema.getField(name) == null) {
+					throw new IllegalArgumentException("No field " + prefix
+							+ name + " in " + schema.getFullName());
+				}
+			}
+			Schema record = Schema.createRecord(schema.getName(), schema
+					.getDoc(), schema.getNamespace(), schema.isError());
+			for (Map.Entry<String, String> prop : schema.getProps().entrySet()) {
+				record.addProp(prop.getKey(), prop.getValue());
+			}
+			record.setFields(fields);
+			return record;
+		case ARRAY:
+			return Schema.createArray(project(schema.getElementType(),
+					selected, path));
+		case MAP:
+			return Schema.createMap(project(schema.getValueType(), selected,
+					path));
+		case UNION:
+			List<Schema> branches = new ArrayList<Schema>();
+			boolean projected = false;
+			for (Schema branch : schema.getTypes()) {
+				Schema.Type type = branch.getType();
+				if (type == Schema.Type.RECORD || type == Schema.Type.ARRAY
+						|| type == Schema.Type.MAP) {
+					branches.add(project(branch, selected, path));
+					projected = true;
+				} else {
+					branches.add(branch);
+				}
+			}
+			if (!projected) {
+				throw new IllegalArgumentException("Cannot select fields of "
+						+ path + " in " + schema);
+			}
+			return Schema.createUnion(branches);
+		default:
+			throw new IllegalArgumentException("Cannot select fields of "
+					+ path + " in " + schema);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.avro;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a schema cannot be resolved from its URL, either because the
+ * fetch failed or because the URL is in the negative cache after recent
+ * failures.
+ */
+public class SchemaResolutionException extends IOException {
+
+	private static final long serialVersionUID = 4311289560271836013L;
+
+	private final String schemaUrl;
+	private final long retryAfterMillis;
+
+	/**
+	 * @param message
+	 * @param schemaUrl
+	 * @param retryAfterMillis
+	 *            time until the URL will be tried again
+	 * @param cause
+	 *            the failure of the last fetch
+	 */
+	public SchemaResolutionException(String message, String schemaUrl,
+			long retryAfterMillis, Throwable cause) {
+		super(message, cause);
+		this.schemaUrl = schemaUrl;
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	/**
+	 * @return the schema URL that failed
+	 */
+	public String getSchemaUrl() {
+		return schemaUrl;
+	}
+
+	/**
+	 * @return time until the URL will be tried again, in milliseconds
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+}
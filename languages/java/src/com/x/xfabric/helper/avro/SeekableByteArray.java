@@ -25,27 +25,48 @@ package com.x.xfabric.helper.avro;
 import java.io.IOException;
 import org.apache.avro.file.SeekableInput;
 
+/**
+ * SeekableInput over a region of a byte array, read in place without
+ * copying the array. Positions are relative to the start of the region.
+ */
 class SeekableByteArray implements SeekableInput {
 	private final byte[] data;
+	private final int offset;
+	private final int end;
 	private int pos = 0;
 
 	public SeekableByteArray(byte[] data) {
+		this( data, 0, data.length );
+	}
+
+	public SeekableByteArray(byte[] data, int offset, int length) {
+		if ( offset < 0 || length < 0 || length > data.length - offset ) {
+			throw new IndexOutOfBoundsException( "Region " + offset + "+"
+			        + length + " outside array of " + data.length );
+		}
 		this.data = data;
+		this.offset = offset;
+		this.end = offset + length;
+		this.pos = offset;
 	}
 
 	@Override
 	public long length() throws IOException {
-		return this.data.length;
+		return this.end - this.offset;
 	}
 
 	@Override
 	public void seek(long p) throws IOException {
-		this.pos = (int) p;
+		if ( p < 0 || p > this.end - this.offset ) {
+			throw new IOException( "Cannot seek to " + p + " in "
+			        + ( this.end - this.offset ) + " bytes" );
+		}
+		this.pos = this.offset + (int) p;
 	}
 
 	@Override
 	public long tell() throws IOException {
-		return this.pos;
+		return this.pos - this.offset;
 	}
 
 	@Override
@@ -65,12 +86,12 @@ class SeekableByteArray implements SeekableInput {
 			throw new IndexOutOfBoundsException(
 			        "Cannot read past end of provided buffer" );
 		}
-		if ( this.pos >= this.data.length ) {
+		if ( this.pos >= this.end ) {
 			return -1;
 		}
 		int lenToRead = len;
-		if ( ( this.pos + lenToRead ) > this.data.length ) {
-			lenToRead = this.data.length - this.pos;
+		if ( lenToRead > this.end - this.pos ) {
+			lenToRead = this.end - this.pos;
 		}
 		if ( lenToRead <= 0 ) {
 			return 0;
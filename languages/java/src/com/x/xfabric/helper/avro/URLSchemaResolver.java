@@ -25,11 +25,14 @@ package com.x.xfabric.helper.avro;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.security.SecureRandom;
 import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 
 import org.apache.avro.Schema;
+import com.x.xfabric.helper.metrics.Metrics;
 
 /**
  * @author vichandrasekaran
@@ -40,26 +43,175 @@ public class URLSchemaResolver {
 	
 	public static int HTTP_CONNECTION_TIMEOUT = 3000;
 	public static int HTTP_READ_TIMEOUT = 7000;
+	public static long NEGATIVE_CACHE_MIN_MILLIS = 1000;
+	public static long NEGATIVE_CACHE_MAX_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Consecutive failures of a URL and when it may be tried again
+	 */
+	static final class Failure {
+
+		final int count;
+		final long retryAt;
+		final IOException cause;
+
+		Failure(int count, long retryAt, IOException cause) {
+			this.count = count;
+			this.retryAt = retryAt;
+			this.cause = cause;
+		}
+	}
+
+	private static final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+
+	/**
+	 * Outcome of a conditional schema fetch
+	 */
+	public static class FetchResult {
+
+		private final Schema schema;
+		private final String etag;
+		private final long lastModified;
+
+		public FetchResult(Schema schema, String etag, long lastModified) {
+			this.schema = schema;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return the schema, or null if it was not modified
+		 */
+		public Schema getSchema() {
+			return schema;
+		}
+
+		/**
+		 * @return the ETag sent by the server, or null
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return the Last-Modified time sent by the server, or 0
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return true if the server reported the schema as not modified
+		 */
+		public boolean isNotModified() {
+			return schema == null;
+		}
+	}
+
+	/**
+	 * Fetches a schema unless it is unchanged since a previous fetch.
+	 * 
+	 * After a failed fetch the URL is negatively cached: further calls fail
+	 * immediately until a backoff delay has passed, which doubles with every
+	 * consecutive failure from NEGATIVE_CACHE_MIN_MILLIS up to
+	 * NEGATIVE_CACHE_MAX_MILLIS.
+	 * 
+	 * @param schemaUrl
+	 * @param etag
+	 *            ETag of the previous fetch, or null
+	 * @param lastModified
+	 *            Last-Modified time of the previous fetch, or 0
+	 * @return the fetched schema with its ETag and Last-Modified time, or a
+	 *         not-modified result
+	 * @throws SchemaResolutionException
+	 *             if the schema cannot be fetched or parsed, or the URL
+	 *             failed recently
+	 */
+	public FetchResult resolve(URL schemaUrl, String etag, long lastModified)
+			throws SchemaResolutionException {
+		String key = schemaUrl.toString();
+		Failure failure = failures.get(key);
+		if (failure != null) {
+			long wait = failure.retryAt - System.nanoTime();
+			if (wait > 0) {
+				Metrics.getRecorder().recordSchemaResolutionFailure(true);
+				throw new SchemaResolutionException("Schema URL " + key
+						+ " failed recently, not retrying yet", key,
+						TimeUnit.NANOSECONDS.toMillis(wait), failure.cause);
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			FetchResult result = fetch(schemaUrl, etag, lastModified);
+			failures.remove(key);
+			return result;
+		} catch (IOException e) {
+			Metrics.getRecorder().recordSchemaResolutionFailure(false);
+			int count = (failure != null) ? failure.count + 1 : 1;
+			long backoff = Math.min(NEGATIVE_CACHE_MAX_MILLIS,
+					NEGATIVE_CACHE_MIN_MILLIS << Math.min(count - 1, 20));
+			failures.put(key, new Failure(count, System.nanoTime()
+					+ TimeUnit.MILLISECONDS.toNanos(backoff), e));
+			throw new SchemaResolutionException("Cannot fetch schema from "
+					+ key, key, backoff, e);
+		} finally {
+			Metrics.getRecorder().recordSchemaFetch(System.nanoTime() - start);
+		}
+	}
+
+	private FetchResult fetch(URL schemaUrl, String etag, long lastModified)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) schemaUrl
+				.openConnection();
+		try {
+			connection.setConnectTimeout(HTTP_CONNECTION_TIMEOUT);
+			connection.setReadTimeout(HTTP_READ_TIMEOUT);
+			if (etag != null) {
+				connection.setRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified > 0) {
+				connection.setIfModifiedSince(lastModified);
+			}
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return new FetchResult(null, etag, lastModified);
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Fetching schema from " + schemaUrl
+						+ " returned HTTP " + status);
+			}
+			InputStream is = connection.getInputStream();
+			try {
+				Schema s = new Schema.Parser().parse(is);
+				return new FetchResult(s, connection.getHeaderField("ETag"),
+						connection.getLastModified());
+			} finally {
+				is.close();
+			}
+		} catch (RuntimeException e) {
+			// the parser reports malformed schemas as runtime exceptions
+			throw new IOException("Invalid schema at " + schemaUrl, e);
+		} finally {
+			connection.disconnect();
+		}
+	}
 	
-	public Schema resolve(URL schemaUrl) throws IOException{
-            try {
-                    HttpURLConnection connection = 
-						(HttpURLConnection) schemaUrl.openConnection();
-                    connection.setDoOutput(true);
-                    // set timeouts
-                    connection.setConnectTimeout(HTTP_CONNECTION_TIMEOUT);
-                    connection.setReadTimeout(HTTP_READ_TIMEOUT);
-                    connection.connect();
-                    InputStream is = connection.getInputStream();
-            		Schema.Parser parser = new Schema.Parser();
-            		Schema s = parser.parse(is);
-            		//TODO: Do we need to explicitly disconnect?
-            		connection.disconnect();
-            		return s;
-            }catch (Exception ex){
-            	ex.printStackTrace();
-            }
-            return null;
-    }
+	/**
+	 * @param schemaUrl
+	 * @return the schema at schemaUrl
+	 * @throws SchemaResolutionException
+	 *             if the schema cannot be fetched or parsed, or the URL
+	 *             failed recently
+	 */
+	public Schema resolve(URL schemaUrl) throws SchemaResolutionException {
+		return resolve(schemaUrl, null, 0).getSchema();
+	}
+
+	/**
+	 * Forgets all recent failures, so that every URL is tried again
+	 */
+	public static void clearNegativeCache() {
+		failures.clear();
+	}
 
 }
@@ -0,0 +1,325 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Default MetricsRecorder. Keeps measurements in striped counters and
+ * fixed-bucket histograms, so recording does not allocate once a topic has
+ * been seen, and exposes them over JMX between calls to {@link #register()}
+ * and {@link #unregister()}:
+ * <ul>
+ * <li>com.x.xfabric:type=XFabricMetrics for schema and publish measurements</li>
+ * <li>com.x.xfabric:type=TopicMetrics,topic=... for each topic</li>
+ * </ul>
+ * At most {@link #MAX_TOPICS} topics are tracked separately; measurements
+ * for further topics are combined under {@link #OTHER_TOPIC}.
+ */
+public class JmxMetricsRecorder implements MetricsRecorder,
+		XFabricMetricsMXBean {
+
+	private static final Logger log = Logger.getLogger(JmxMetricsRecorder.class
+			.getName());
+
+	/**
+	 * Domain of the MBeans registered
+	 */
+	public static final String DOMAIN = "com.x.xfabric";
+
+	/**
+	 * Most topics tracked separately
+	 */
+	public static final int MAX_TOPICS = 1024;
+
+	/**
+	 * Topic that measurements beyond MAX_TOPICS are recorded under
+	 */
+	public static final String OTHER_TOPIC = "(other)";
+
+	private static final int STATUS_NONE = 0;
+	private static final int STATUS_OTHER = 1;
+
+	private final ConcurrentMap<String, TopicMetrics> topics = new ConcurrentHashMap<String, TopicMetrics>();
+	private final LongAdder schemaCacheHits = new LongAdder();
+	private final LongAdder schemaCacheMisses = new LongAdder();
+	private final Histogram schemaFetchNanos = new Histogram();
+	private final LongAdder schemaResolutionFailures = new LongAdder();
+	private final LongAdder schemaResolutionFastFails = new LongAdder();
+	private final Histogram publishNanos = new Histogram();
+	private final AtomicLongArray publishStatusCounts = new AtomicLongArray(600);
+
+	private volatile MBeanServer server;
+
+	/**
+	 * Registers this recorder, and the metrics of each topic seen, with the
+	 * platform MBean server.
+	 * 
+	 * @throws JMException
+	 *             if this recorder cannot be registered
+	 */
+	public synchronized void register() throws JMException {
+		if (server != null) {
+			return;
+		}
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		mbs.registerMBean(this, recorderName());
+		server = mbs;
+		for (TopicMetrics t : topics.values()) {
+			register(t);
+		}
+	}
+
+	/**
+	 * Removes the MBeans added by {@link #register()}. Applications that
+	 * registered the recorder from a web application must call this when
+	 * they are stopped, or the MBean server keeps their class loader alive.
+	 * Measurements go on being recorded.
+	 */
+	public synchronized void unregister() {
+		MBeanServer mbs = server;
+		if (mbs == null) {
+			return;
+		}
+		server = null;
+		for (TopicMetrics t : topics.values()) {
+			unregister(mbs, t.getTopic());
+		}
+		try {
+			mbs.unregisterMBean(recorderName());
+		} catch (JMException e) {
+			log.log(Level.FINE, "Cannot unregister XFabric metrics MBean", e);
+		}
+	}
+
+	private void register(TopicMetrics t) {
+		MBeanServer mbs = server;
+		if (mbs == null) {
+			return;
+		}
+		try {
+			mbs.registerMBean(t, topicName(t.getTopic()));
+		} catch (JMException e) {
+			log.log(Level.FINE, "Cannot register metrics of topic "
+					+ t.getTopic(), e);
+		}
+	}
+
+	private static void unregister(MBeanServer mbs, String topic) {
+		try {
+			mbs.unregisterMBean(topicName(topic));
+		} catch (JMException e) {
+			// not registered, e.g. because registering it failed
+			log.log(Level.FINE, "Cannot unregister metrics of topic " + topic,
+					e);
+		}
+	}
+
+	private static ObjectName recorderName() throws MalformedObjectNameException {
+		return new ObjectName(DOMAIN + ":type=XFabricMetrics");
+	}
+
+	private static ObjectName topicName(String topic)
+			throws MalformedObjectNameException {
+		return new ObjectName(DOMAIN + ":type=TopicMetrics,topic="
+				+ ObjectName.quote(topic));
+	}
+
+	/**
+	 * @param topic
+	 *            topic name
+	 * @return metrics of topic, or of OTHER_TOPIC if MAX_TOPICS have already
+	 *         been seen
+	 */
+	public TopicMetrics getTopicMetrics(String topic) {
+		TopicMetrics t = topics.get(topic);
+		if (t != null) {
+			return t;
+		}
+		return addTopic(topic);
+	}
+
+	private synchronized TopicMetrics addTopic(String topic) {
+		TopicMetrics t = topics.get(topic);
+		if (t != null) {
+			return t;
+		}
+		if (topics.size() >= MAX_TOPICS) {
+			topic = OTHER_TOPIC;
+			t = topics.get(topic);
+			if (t != null) {
+				return t;
+			}
+		}
+		t = new TopicMetrics(topic);
+		topics.put(topic, t);
+		register(t);
+		return t;
+	}
+
+	public void recordDecode(String topic, long nanos, int bytes) {
+		getTopicMetrics(topic).recordDecode(nanos, bytes);
+	}
+
+	public void recordEncode(String topic, long nanos, int bytes) {
+		getTopicMetrics(topic).recordEncode(nanos, bytes);
+	}
+
+	public void recordSchemaCacheHit() {
+		schemaCacheHits.increment();
+	}
+
+	public void recordSchemaCacheMiss() {
+		schemaCacheMisses.increment();
+	}
+
+	public void recordSchemaFetch(long nanos) {
+		schemaFetchNanos.record(nanos);
+	}
+
+	public void recordSchemaResolutionFailure(boolean fastFail) {
+		if (fastFail) {
+			schemaResolutionFastFails.increment();
+		} else {
+			schemaResolutionFailures.increment();
+		}
+	}
+
+	public void recordPublish(long nanos, int statusCode) {
+		publishNanos.record(nanos);
+		int slot;
+		if (statusCode < 0) {
+			slot = STATUS_NONE;
+		} else if (statusCode < 100
+				|| statusCode >= publishStatusCounts.length()) {
+			slot = STATUS_OTHER;
+		} else {
+			slot = statusCode;
+		}
+		publishStatusCounts.incrementAndGet(slot);
+	}
+
+	/**
+	 * @return schema fetch latency in nanoseconds
+	 */
+	public Histogram getSchemaFetchNanos() {
+		return schemaFetchNanos;
+	}
+
+	/**
+	 * @return publish latency in nanoseconds
+	 */
+	public Histogram getPublishNanos() {
+		return publishNanos;
+	}
+
+	/**
+	 * @param statusCode
+	 *            HTTP status, or -1 for publishes that received no response
+	 * @return number of publishes with statusCode
+	 */
+	public long getPublishStatusCount(int statusCode) {
+		if (statusCode < 0) {
+			return publishStatusCounts.get(STATUS_NONE);
+		}
+		if (statusCode < 100 || statusCode >= publishStatusCounts.length()) {
+			return 0;
+		}
+		return publishStatusCounts.get(statusCode);
+	}
+
+	public long getSchemaCacheHits() {
+		return schemaCacheHits.sum();
+	}
+
+	public long getSchemaCacheMisses() {
+		return schemaCacheMisses.sum();
+	}
+
+	public long getSchemaFetchCount() {
+		return schemaFetchNanos.getCount();
+	}
+
+	public double getSchemaFetchMeanMicros() {
+		return schemaFetchNanos.getMean() / 1000;
+	}
+
+	public long getSchemaFetchP99Micros() {
+		return schemaFetchNanos.getPercentile(99) / 1000;
+	}
+
+	public long getSchemaResolutionFailures() {
+		return schemaResolutionFailures.sum();
+	}
+
+	public long getSchemaResolutionFastFails() {
+		return schemaResolutionFastFails.sum();
+	}
+
+	public long getPublishCount() {
+		return publishNanos.getCount();
+	}
+
+	public double getPublishMeanMicros() {
+		return publishNanos.getMean() / 1000;
+	}
+
+	public long getPublishP50Micros() {
+		return publishNanos.getPercentile(50) / 1000;
+	}
+
+	public long getPublishP99Micros() {
+		return publishNanos.getPercentile(99) / 1000;
+	}
+
+	public Map<String, Long> getPublishStatusCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (int i = 0; i < publishStatusCounts.length(); i++) {
+			long n = publishStatusCounts.get(i);
+			if (n == 0) {
+				continue;
+			}
+			String key = (i == STATUS_NONE) ? "none"
+					: (i == STATUS_OTHER) ? "other" : Integer.toString(i);
+			counts.put(key, n);
+		}
+		return counts;
+	}
+
+	public String[] getTopics() {
+		return topics.keySet().toArray(new String[0]);
+	}
+}
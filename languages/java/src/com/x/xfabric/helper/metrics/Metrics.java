@@ -0,0 +1,117 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.metrics;
+
+import javax.management.JMException;
+
+import org.apache.avro.Schema;
+
+/**
+ * Holds the MetricsRecorder the library reports to. By default this is a
+ * {@link JmxMetricsRecorder} that records in process only; call
+ * {@link #registerJmx()} to expose it over JMX.
+ */
+public class Metrics {
+
+	/**
+	 * Recorder that drops all measurements
+	 */
+	public static final MetricsRecorder NOOP = new MetricsRecorder() {
+		public void recordDecode(String topic, long nanos, int bytes) {
+		}
+
+		public void recordEncode(String topic, long nanos, int bytes) {
+		}
+
+		public void recordSchemaCacheHit() {
+		}
+
+		public void recordSchemaCacheMiss() {
+		}
+
+		public void recordSchemaFetch(long nanos) {
+		}
+
+		public void recordSchemaResolutionFailure(boolean fastFail) {
+		}
+
+		public void recordPublish(long nanos, int statusCode) {
+		}
+	};
+
+	private static volatile MetricsRecorder recorder = new JmxMetricsRecorder();
+
+	/**
+	 * @return the recorder measurements are reported to
+	 */
+	public static MetricsRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * @param metricsRecorder
+	 *            the recorder to report measurements to, or {@link #NOOP} to
+	 *            turn recording off
+	 */
+	public static void setRecorder(MetricsRecorder metricsRecorder) {
+		if (metricsRecorder == null) {
+			throw new IllegalArgumentException("metricsRecorder is null");
+		}
+		recorder = metricsRecorder;
+	}
+
+	/**
+	 * Registers the current recorder with the platform MBean server, if it is
+	 * a {@link JmxMetricsRecorder}. Registering twice has no effect.
+	 * 
+	 * @throws JMException
+	 *             if the recorder cannot be registered, e.g. because another
+	 *             copy of the library already registered its own
+	 */
+	public static void registerJmx() throws JMException {
+		MetricsRecorder current = recorder;
+		if (current instanceof JmxMetricsRecorder) {
+			((JmxMetricsRecorder) current).register();
+		}
+	}
+
+	/**
+	 * Removes the MBeans added by {@link #registerJmx()}. Web applications
+	 * that registered them must call this when they are stopped.
+	 */
+	public static void unregisterJmx() {
+		MetricsRecorder current = recorder;
+		if (current instanceof JmxMetricsRecorder) {
+			((JmxMetricsRecorder) current).unregister();
+		}
+	}
+
+	/**
+	 * @return the topic measurements for messages of schema are reported
+	 *         under: its topic, or its full name if it has none
+	 */
+	public static String topicOf(Schema schema) {
+		String topic = schema.getProp("topic");
+		return (topic != null) ? topic : schema.getFullName();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.metrics;
+
+/**
+ * Receives measurements from the library's hot paths: message encoding and
+ * decoding, schema lookups and fetches, and publishing. Install an
+ * implementation with {@link Metrics#setRecorder(MetricsRecorder)} to send
+ * them to a metrics system of your choice; the default keeps them in process
+ * and exposes them over JMX.
+ * 
+ * Methods are called on the threads doing the work, often for every message,
+ * so implementations must be thread-safe, should not block, and should not
+ * allocate.
+ */
+public interface MetricsRecorder {
+
+	/**
+	 * A message was decoded.
+	 * 
+	 * @param topic
+	 *            topic of the writer schema, or its full name if it has no
+	 *            topic
+	 * @param nanos
+	 *            time taken
+	 * @param bytes
+	 *            size of the encoded message, or -1 if it was decoded from a
+	 *            stream of unknown length
+	 */
+	void recordDecode(String topic, long nanos, int bytes);
+
+	/**
+	 * A message was encoded.
+	 * 
+	 * @param topic
+	 *            topic of the schema, or its full name if it has no topic
+	 * @param nanos
+	 *            time taken
+	 * @param bytes
+	 *            size of the encoded message
+	 */
+	void recordEncode(String topic, long nanos, int bytes);
+
+	/**
+	 * SchemaCache found the schema for a topic and version.
+	 */
+	void recordSchemaCacheHit();
+
+	/**
+	 * SchemaCache did not have the schema for a topic and version.
+	 */
+	void recordSchemaCacheMiss();
+
+	/**
+	 * A schema was fetched from a schema URL, successfully or not.
+	 * 
+	 * @param nanos
+	 *            time taken
+	 */
+	void recordSchemaFetch(long nanos);
+
+	/**
+	 * A schema could not be resolved from a schema URL.
+	 * 
+	 * @param fastFail
+	 *            true if the URL was not tried because it failed recently
+	 */
+	void recordSchemaResolutionFailure(boolean fastFail);
+
+	/**
+	 * A message was posted to the fabric.
+	 * 
+	 * @param nanos
+	 *            time from sending the request to receiving the response
+	 * @param statusCode
+	 *            HTTP status of the response, or -1 if none was received
+	 */
+	void recordPublish(long nanos, int statusCode);
+}
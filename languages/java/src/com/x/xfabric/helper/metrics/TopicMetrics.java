@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.metrics;
+
+/**
+ * Encode and decode measurements for one topic, kept by
+ * {@link JmxMetricsRecorder}.
+ */
+public class TopicMetrics implements TopicMetricsMXBean {
+
+	private final String topic;
+	private final Histogram decodeNanos = new Histogram();
+	private final Histogram decodeBytes = new Histogram();
+	private final Histogram encodeNanos = new Histogram();
+	private final Histogram encodeBytes = new Histogram();
+
+	public TopicMetrics(String topic) {
+		this.topic = topic;
+	}
+
+	void recordDecode(long nanos, int bytes) {
+		decodeNanos.record(nanos);
+		if (bytes >= 0) {
+			decodeBytes.record(bytes);
+		}
+	}
+
+	void recordEncode(long nanos, int bytes) {
+		encodeNanos.record(nanos);
+		if (bytes >= 0) {
+			encodeBytes.record(bytes);
+		}
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return decode latency in nanoseconds
+	 */
+	public Histogram getDecodeNanos() {
+		return decodeNanos;
+	}
+
+	/**
+	 * @return sizes of decoded messages whose size was known
+	 */
+	public Histogram getDecodeBytes() {
+		return decodeBytes;
+	}
+
+	/**
+	 * @return encode latency in nanoseconds
+	 */
+	public Histogram getEncodeNanos() {
+		return encodeNanos;
+	}
+
+	/**
+	 * @return sizes of encoded messages
+	 */
+	public Histogram getEncodeBytes() {
+		return encodeBytes;
+	}
+
+	public long getDecodeCount() {
+		return decodeNanos.getCount();
+	}
+
+	public double getDecodeMeanMicros() {
+		return decodeNanos.getMean() / 1000;
+	}
+
+	public long getDecodeP50Micros() {
+		return decodeNanos.getPercentile(50) / 1000;
+	}
+
+	public long getDecodeP99Micros() {
+		return decodeNanos.getPercentile(99) / 1000;
+	}
+
+	public double getDecodeMeanBytes() {
+		return decodeBytes.getMean();
+	}
+
+	public long getDecodeP99Bytes() {
+		return decodeBytes.getPercentile(99);
+	}
+
+	public long getEncodeCount() {
+		return encodeNanos.getCount();
+	}
+
+	public double getEncodeMeanMicros() {
+		return encodeNanos.getMean() / 1000;
+	}
+
+	public long getEncodeP50Micros() {
+		return encodeNanos.getPercentile(50) / 1000;
+	}
+
+	public long getEncodeP99Micros() {
+		return encodeNanos.getPercentile(99) / 1000;
+	}
+
+	public double getEncodeMeanBytes() {
+		return encodeBytes.getMean();
+	}
+
+	public long getEncodeP99Bytes() {
+		return encodeBytes.getPercentile(99);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2011, X.Commerce
+
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification, are permitted provided that the 
+following conditions are met:
+
+Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+disclaimer.  Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+following disclaimer in the documentation and/or other materials provided with the distribution.  Neither the name of
+the nor the names of its contributors may be used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.x.xfabric.helper.metrics;
+
+import java.util.Map;
+
+/**
+ * Schema and publish measurements. Latencies are in microseconds;
+ * percentiles are bucket upper bounds.
+ */
+public interface XFabricMetricsMXBean {
+
+	long getSchemaCacheHits();
+
+	long getSchemaCacheMisses();
+
+	long getSchemaFetchCount();
+
+	double getSchemaFetchMeanMicros();
+
+	long getSchemaFetchP99Micros();
+
+	long getSchemaResolutionFailures();
+
+	long getSchemaResolutionFastFails();
+
+	long getPublishCount();
+
+	double getPublishMeanMicros();
+
+	long getPublishP50Micros();
+
+	long getPublishP99Micros();
+
+	/**
+	 * @return number of publishes by HTTP status, with "none" for those that
+	 *         received no response
+	 */
+	Map<String, Long> getPublishStatusCounts();
+
+	/**
+	 * @return topics with encode or decode measurements
+	 */
+	String[] getTopics();
+}